@@ -0,0 +1,473 @@
+package test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Persists the bot's in-memory conversation state as a binary snapshot plus an append-only delta log.
+// Changes are handed to a single writer thread, which applies them to its own copy of the state
+// and appends them to the log; the copy is periodically written out as the new snapshot.
+// Every log record carries the full new value for its key, so replaying the log is idempotent.
+public class BotStateStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(BotStateStore.class);
+
+    private static final int SNAPSHOT_MAGIC = 0x47535331; // "GSS1"
+
+    private static final byte OP_PUT_CHAT = 1;
+    private static final byte OP_REMOVE_CHAT = 2;
+    private static final byte OP_PUT_QUEUE = 3;
+    private static final byte OP_REMOVE_QUEUE = 4;
+    private static final byte OP_PUT_USER_STATE = 5;
+    private static final byte OP_REMOVE_USER_STATE = 6;
+    private static final byte OP_PUT_LISTING = 7;
+    private static final byte OP_REMOVE_LISTING = 8;
+
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final long checkpointIntervalSeconds;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "state-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Only touched by the writer thread once restore() has returned
+    private final State state = new State();
+    private DataOutputStream log;
+    private boolean dirty = true;
+    // Cleared when damaged state files could not be set aside, so they are never overwritten
+    private boolean persistent = true;
+
+    public BotStateStore(String directory, long checkpointIntervalSeconds) {
+        Path dir = Paths.get(directory);
+        this.snapshotFile = dir.resolve("state.snap");
+        this.logFile = dir.resolve("state.log");
+        this.checkpointIntervalSeconds = checkpointIntervalSeconds;
+    }
+
+    public State restore() {
+        long start = System.nanoTime();
+        boolean intact = true;
+        try {
+            Files.createDirectories(snapshotFile.getParent());
+        } catch (IOException e) {
+            logger.error("Error creating state directory: ", e);
+        }
+
+        // On a bad record keep everything read before it rather than starting empty
+        if (Files.exists(snapshotFile)) {
+            try (DataInputStream in = open(snapshotFile)) {
+                readSnapshot(in);
+            } catch (IOException e) {
+                // Snapshots are renamed into place whole, so unlike the log a short one is damage, not a torn write
+                logger.error("Error reading state snapshot, keeping the entries read before the error: ", e);
+                intact = false;
+            }
+        }
+        int replayed = 0;
+        if (Files.exists(logFile)) {
+            try (DataInputStream in = open(logFile)) {
+                while (true) {
+                    Op op;
+                    try {
+                        op = readOp(in);
+                    } catch (EOFException e) {
+                        // A crash can leave a half-written record at the end; everything before it is intact
+                        break;
+                    }
+                    apply(op);
+                    replayed++;
+                }
+            } catch (IOException e) {
+                logger.error("Error replaying state log, keeping the {} records read before the error: ", replayed, e);
+                intact = false;
+            }
+        }
+        logger.info("Restored {} chats, {} queues, {} user states, {} listings ({} log records) in {} ms",
+                state.activeChats.size(), state.chatQueues.size(), state.userStates.size(), state.userListings.size(),
+                replayed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        // The next checkpoint replaces the snapshot and truncates the log, so keep the damaged files first
+        if (!intact && !setAsideCorruptFiles()) {
+            logger.error("Could not set aside the damaged state files; state changes will not be persisted");
+            persistent = false;
+        }
+
+        State restored = state.copy();
+        writer.execute(this::checkpoint);
+        writer.scheduleWithFixedDelay(this::checkpoint, checkpointIntervalSeconds, checkpointIntervalSeconds, TimeUnit.SECONDS);
+        return restored;
+    }
+
+    public void putChat(long chatId, long otherChatId) {
+        submit(new Op(OP_PUT_CHAT, chatId).withOther(otherChatId));
+    }
+
+    public void removeChat(long chatId) {
+        submit(new Op(OP_REMOVE_CHAT, chatId));
+    }
+
+    public void putQueue(long sellerChatId, Iterable<Long> buyers) {
+        List<Long> copy = new ArrayList<>();
+        buyers.forEach(copy::add);
+        submit(new Op(OP_PUT_QUEUE, sellerChatId).withQueue(copy));
+    }
+
+    public void removeQueue(long sellerChatId) {
+        submit(new Op(OP_REMOVE_QUEUE, sellerChatId));
+    }
+
+    public void putUserState(long chatId, String userState) {
+        submit(new Op(OP_PUT_USER_STATE, chatId).withText(userState));
+    }
+
+    public void removeUserState(long chatId) {
+        submit(new Op(OP_REMOVE_USER_STATE, chatId));
+    }
+
+    public void putListing(long chatId, Map<String, String> listing) {
+        submit(new Op(OP_PUT_LISTING, chatId).withListing(new HashMap<>(listing)));
+    }
+
+    public void removeListing(long chatId) {
+        submit(new Op(OP_REMOVE_LISTING, chatId));
+    }
+
+    public void close() {
+        writer.execute(() -> {
+            checkpoint();
+            closeLog();
+        });
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Blocks until every change submitted so far has been handed to the OS
+    void sync() throws InterruptedException, ExecutionException {
+        writer.submit(() -> {
+        }).get();
+    }
+
+    private void submit(Op op) {
+        writer.execute(() -> {
+            apply(op);
+            dirty = true;
+            if (!persistent) {
+                return;
+            }
+            try {
+                if (log == null) {
+                    log = new DataOutputStream(new BufferedOutputStream(
+                            Files.newOutputStream(logFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+                }
+                writeOp(log, op);
+                // Hand the record to the OS so it survives the process being killed
+                log.flush();
+            } catch (IOException e) {
+                logger.error("Error appending to state log: ", e);
+            }
+        });
+    }
+
+    private void checkpoint() {
+        if (!dirty || !persistent) {
+            return;
+        }
+        Path tmp = snapshotFile.resolveSibling("state.snap.tmp");
+        try {
+            try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+                writeSnapshot(out);
+                out.flush();
+                file.getFD().sync();
+            }
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            // The snapshot now covers every logged record, so the log can start over
+            closeLog();
+            log = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(logFile)));
+            dirty = false;
+        } catch (IOException e) {
+            logger.error("Error writing state snapshot: ", e);
+        }
+    }
+
+    private boolean setAsideCorruptFiles() {
+        String suffix = ".corrupt-" + System.currentTimeMillis();
+        try {
+            for (Path file : new Path[]{snapshotFile, logFile}) {
+                if (Files.exists(file)) {
+                    Path corrupt = file.resolveSibling(file.getFileName() + suffix);
+                    Files.move(file, corrupt);
+                    logger.warn("Moved damaged state file to {}", corrupt);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            logger.error("Error setting aside damaged state files: ", e);
+            return false;
+        }
+    }
+
+    private void closeLog() {
+        if (log == null) {
+            return;
+        }
+        try {
+            log.close();
+        } catch (IOException e) {
+            logger.warn("Error closing state log: ", e);
+        }
+        log = null;
+    }
+
+    private static DataInputStream open(Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        return new DataInputStream(new BufferedInputStream(in));
+    }
+
+    private void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(SNAPSHOT_MAGIC);
+
+        out.writeInt(state.activeChats.size());
+        for (Map.Entry<Long, Long> entry : state.activeChats.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+
+        out.writeInt(state.chatQueues.size());
+        for (Map.Entry<Long, List<Long>> entry : state.chatQueues.entrySet()) {
+            out.writeLong(entry.getKey());
+            writeQueue(out, entry.getValue());
+        }
+
+        out.writeInt(state.userStates.size());
+        for (Map.Entry<Long, String> entry : state.userStates.entrySet()) {
+            out.writeLong(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+
+        out.writeInt(state.userListings.size());
+        for (Map.Entry<Long, Map<String, String>> entry : state.userListings.entrySet()) {
+            out.writeLong(entry.getKey());
+            writeListing(out, entry.getValue());
+        }
+    }
+
+    private void readSnapshot(DataInputStream in) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a bot state snapshot: " + snapshotFile);
+        }
+
+        int chats = in.readInt();
+        for (int i = 0; i < chats; i++) {
+            state.activeChats.put(in.readLong(), in.readLong());
+        }
+
+        int queues = in.readInt();
+        for (int i = 0; i < queues; i++) {
+            state.chatQueues.put(in.readLong(), readQueue(in));
+        }
+
+        int userStates = in.readInt();
+        for (int i = 0; i < userStates; i++) {
+            state.userStates.put(in.readLong(), in.readUTF());
+        }
+
+        int listings = in.readInt();
+        for (int i = 0; i < listings; i++) {
+            state.userListings.put(in.readLong(), readListing(in));
+        }
+    }
+
+    private static void writeOp(DataOutputStream out, Op op) throws IOException {
+        out.writeByte(op.type);
+        out.writeLong(op.chatId);
+        switch (op.type) {
+            case OP_PUT_CHAT:
+                out.writeLong(op.otherChatId);
+                break;
+            case OP_PUT_QUEUE:
+                writeQueue(out, op.queue);
+                break;
+            case OP_PUT_USER_STATE:
+                out.writeUTF(op.text);
+                break;
+            case OP_PUT_LISTING:
+                writeListing(out, op.listing);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static Op readOp(DataInputStream in) throws IOException {
+        Op op = new Op(in.readByte(), in.readLong());
+        switch (op.type) {
+            case OP_PUT_CHAT:
+                return op.withOther(in.readLong());
+            case OP_PUT_QUEUE:
+                return op.withQueue(readQueue(in));
+            case OP_PUT_USER_STATE:
+                return op.withText(in.readUTF());
+            case OP_PUT_LISTING:
+                return op.withListing(readListing(in));
+            case OP_REMOVE_CHAT:
+            case OP_REMOVE_QUEUE:
+            case OP_REMOVE_USER_STATE:
+            case OP_REMOVE_LISTING:
+                return op;
+            default:
+                throw new IOException("Unknown state log record type " + op.type);
+        }
+    }
+
+    private void apply(Op op) {
+        switch (op.type) {
+            case OP_PUT_CHAT:
+                state.activeChats.put(op.chatId, op.otherChatId);
+                break;
+            case OP_REMOVE_CHAT:
+                state.activeChats.remove(op.chatId);
+                break;
+            case OP_PUT_QUEUE:
+                state.chatQueues.put(op.chatId, op.queue);
+                break;
+            case OP_REMOVE_QUEUE:
+                state.chatQueues.remove(op.chatId);
+                break;
+            case OP_PUT_USER_STATE:
+                state.userStates.put(op.chatId, op.text);
+                break;
+            case OP_REMOVE_USER_STATE:
+                state.userStates.remove(op.chatId);
+                break;
+            case OP_PUT_LISTING:
+                state.userListings.put(op.chatId, op.listing);
+                break;
+            case OP_REMOVE_LISTING:
+                state.userListings.remove(op.chatId);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void writeQueue(DataOutputStream out, List<Long> queue) throws IOException {
+        out.writeInt(queue.size());
+        for (long chatId : queue) {
+            out.writeLong(chatId);
+        }
+    }
+
+    private static List<Long> readQueue(DataInputStream in) throws IOException {
+        int size = readSize(in);
+        List<Long> queue = new ArrayList<>(Math.min(size, 1024));
+        for (int i = 0; i < size; i++) {
+            queue.add(in.readLong());
+        }
+        return queue;
+    }
+
+    // Damaged lengths must surface as IOException, not as an allocation failure
+    private static int readSize(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            throw new IOException("Negative length " + size + " in bot state");
+        }
+        return size;
+    }
+
+    private static void writeListing(DataOutputStream out, Map<String, String> listing) throws IOException {
+        out.writeInt(listing.size());
+        for (Map.Entry<String, String> field : listing.entrySet()) {
+            out.writeUTF(field.getKey());
+            out.writeUTF(field.getValue());
+        }
+    }
+
+    private static Map<String, String> readListing(DataInputStream in) throws IOException {
+        int size = readSize(in);
+        Map<String, String> listing = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            listing.put(in.readUTF(), in.readUTF());
+        }
+        return listing;
+    }
+
+    public static class State {
+        public final Map<Long, Long> activeChats = new HashMap<>();
+        public final Map<Long, List<Long>> chatQueues = new HashMap<>();
+        public final Map<Long, String> userStates = new HashMap<>();
+        public final Map<Long, Map<String, String>> userListings = new HashMap<>();
+
+        private State copy() {
+            State copy = new State();
+            copy.activeChats.putAll(activeChats);
+            chatQueues.forEach((seller, buyers) -> copy.chatQueues.put(seller, new ArrayList<>(buyers)));
+            copy.userStates.putAll(userStates);
+            userListings.forEach((chatId, listing) -> copy.userListings.put(chatId, new HashMap<>(listing)));
+            return copy;
+        }
+    }
+
+    private static class Op {
+        private final byte type;
+        private final long chatId;
+        private long otherChatId;
+        private String text;
+        private List<Long> queue;
+        private Map<String, String> listing;
+
+        private Op(byte type, long chatId) {
+            this.type = type;
+            this.chatId = chatId;
+        }
+
+        private Op withOther(long otherChatId) {
+            this.otherChatId = otherChatId;
+            return this;
+        }
+
+        private Op withText(String text) {
+            this.text = text;
+            return this;
+        }
+
+        private Op withQueue(List<Long> queue) {
+            this.queue = queue;
+            return this;
+        }
+
+        private Op withListing(Map<String, String> listing) {
+            this.listing = listing;
+            return this;
+        }
+    }
+}
@@ -1,31 +1,56 @@
 package test;
 
-import com.mongodb.ConnectionString;
-import com.mongodb.MongoClientSettings;
-import com.mongodb.ServerApi;
-import com.mongodb.ServerApiVersion;
-import com.mongodb.client.MongoClient;
-import com.mongodb.client.MongoClients;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoDatabase;
 import io.github.cdimascio.dotenv.Dotenv;
 import org.bson.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
+import org.telegram.telegrambots.meta.api.methods.AnswerCallbackQuery;
+import org.telegram.telegrambots.meta.api.methods.AnswerInlineQuery;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.CopyMessage;
+import org.telegram.telegrambots.meta.api.methods.GetFile;
+import org.telegram.telegrambots.meta.api.methods.send.SendDocument;
+import org.telegram.telegrambots.meta.api.methods.send.SendMediaGroup;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.methods.updates.DeleteWebhook;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageReplyMarkup;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
+import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
+import org.telegram.telegrambots.meta.api.objects.InputFile;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.PhotoSize;
 import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.InlineQuery;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.inputmessagecontent.InputTextMessageContent;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResult;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResultArticle;
+import org.telegram.telegrambots.meta.api.objects.media.InputMedia;
+import org.telegram.telegrambots.meta.api.objects.media.InputMediaAudio;
+import org.telegram.telegrambots.meta.api.objects.media.InputMediaDocument;
+import org.telegram.telegrambots.meta.api.objects.media.InputMediaPhoto;
+import org.telegram.telegrambots.meta.api.objects.media.InputMediaVideo;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class GigSwapBot extends TelegramLongPollingBot {
@@ -35,45 +60,91 @@ public class GigSwapBot extends TelegramLongPollingBot {
     private static final Dotenv dotenv = Dotenv.load();
     private static final String BOT_TOKEN = dotenv.get("BOT_TOKEN");
     private static final String CONNECTION_STRING = dotenv.get("MONGO_CONNECTION_STRING");
+    private static final String BROWSE_CONNECTION_STRING = dotenv.get("MONGO_BROWSE_CONNECTION_STRING", CONNECTION_STRING);
+    private static final int PRIMARY_MAX_POOL_SIZE = Integer.parseInt(dotenv.get("MONGO_PRIMARY_MAX_POOL_SIZE", "50"));
+    private static final int BROWSE_MAX_POOL_SIZE = Integer.parseInt(dotenv.get("MONGO_BROWSE_MAX_POOL_SIZE", "100"));
+    // MongoRouter raises values below 90, the lowest maxStalenessSeconds MongoDB accepts
+    private static final long BROWSE_MAX_STALENESS_SECONDS = Long.parseLong(dotenv.get("MONGO_BROWSE_MAX_STALENESS_SECONDS", "90"));
     private static final String DATABASE_NAME = dotenv.get("DATABASE_NAME");
     private static final String COLLECTION_NAME = dotenv.get("COLLECTION_NAME");
     private static final String REVIEW_COLLECTION_NAME = dotenv.get("REVIEW_COLLECTION_NAME");
-
-    private static MongoClient mongoClient;
-    private static MongoDatabase database;
-    private static MongoCollection<Document> collection;
-    private static MongoCollection<Document> reviewCollection;
+    private static final String TRACE_DUMP_FILE = dotenv.get("TRACE_DUMP_FILE");
+    private static final String STATE_DIR = dotenv.get("STATE_DIR", "state");
+    private static final long STATE_CHECKPOINT_SECONDS = Long.parseLong(dotenv.get("STATE_CHECKPOINT_SECONDS", "30"));
+
+    // Keeps traces of updates slower than TRACE_SLOW_MS so "the bot took 8 seconds" can be explained
+    private static final UpdateTracer tracer = new UpdateTracer(
+            Boolean.parseBoolean(dotenv.get("TRACE_ENABLED", "true")),
+            Long.parseLong(dotenv.get("TRACE_SLOW_MS", "2000")),
+            Integer.parseInt(dotenv.get("TRACE_BUFFER_SIZE", "256")));
+
+    private final MongoRouter router;
+    private final MongoCollection<Document> collection;
+    private final MongoCollection<Document> ownListingsCollection;
+    private final MongoCollection<Document> reviewCollection;
+    private final MongoCollection<Document> browseCollection;
+    private final MongoCollection<Document> browseReviewCollection;
 
     private Map<Long, String> userStates = new HashMap<>();
     private Map<Long, Map<String, String>> userListings = new HashMap<>();
     private Map<Long, Long> activeChats = new ConcurrentHashMap<>();
     private Map<Long, Queue<Long>> chatQueues = new ConcurrentHashMap<>();
     private Map<Long, List<Document>> filteredListings = new HashMap<>();
+    // States that expect a number from filteredListings, which only lives in memory
+    private static final Set<String> LISTING_NUMBER_STATES = new HashSet<>(Arrays.asList(
+            "AWAITING_PURCHASE_LISTING", "AWAITING_SHARE_LISTING_NUMBER", "AWAITING_VIEW_REVIEW_LISTING_NUMBER"));
+    private final BotStateStore stateStore;
+    // Event name of each chat's current filter, used to page through the filtered results
+    private Map<Long, String> filterQueries = new HashMap<>();
+
+    // Latest paged message of each chat and hashes of the text/keyboard last rendered into it
+    private Map<Long, RenderedPage> renderedPages = new ConcurrentHashMap<>();
+
+    // Number of page buttons shown around the current page
+    private static final int PAGE_WINDOW = 5;
+
+    // Album items arrive as separate updates; wait this long for the rest before relaying
+    private static final long ALBUM_FLUSH_DELAY_MS = 800;
+    private Map<String, List<Message>> pendingAlbums = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService albumScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    // Bulk imports run off the update thread so one large file does not stall everyone else
+    private final ExecutorService importExecutor = Executors.newSingleThreadExecutor();
+    private static final int MAX_INLINE_IMPORT_ERRORS = 20;
+
+    // Inline mode (@GigSwapBot <query>) is served from an in-memory index refreshed in the background
+    private static final int INLINE_RESULT_LIMIT = 20;
+    private static final int INLINE_CACHE_SECONDS = 10;
+    private static final long SEARCH_INDEX_REFRESH_SECONDS = Long.parseLong(dotenv.get("SEARCH_INDEX_REFRESH_SECONDS", "60"));
+    private final ListingSearchIndex searchIndex = new ListingSearchIndex(TimeUnit.SECONDS.toMillis(INLINE_CACHE_SECONDS));
+    private final ScheduledExecutorService searchIndexScheduler = Executors.newSingleThreadScheduledExecutor();
 
-    static {
-        try {
-            logger.info("Connecting to MongoDB with connection string: {}", CONNECTION_STRING);
-            ConnectionString connString = new ConnectionString(CONNECTION_STRING);
-            ServerApi serverApi = ServerApi.builder()
-                    .version(ServerApiVersion.V1)
-                    .build();
-            MongoClientSettings settings = MongoClientSettings.builder()
-                    .applyConnectionString(connString)
-                    .serverApi(serverApi)
-                    .applyToClusterSettings(builder -> builder.serverSelectionTimeout(60000, TimeUnit.MILLISECONDS))
-                    .build();
-            mongoClient = MongoClients.create(settings);
-            database = mongoClient.getDatabase(DATABASE_NAME);
-            collection = database.getCollection(COLLECTION_NAME);
-            reviewCollection = database.getCollection(REVIEW_COLLECTION_NAME);
-            logger.info("MongoClient created successfully");
-        } catch (Exception e) {
-            logger.error("Error connecting to MongoDB: ", e);
-        }
+    public GigSwapBot() {
+        this(new DefaultBotOptions(), new BotStateStore(STATE_DIR, STATE_CHECKPOINT_SECONDS), connectMongo());
+        searchIndexScheduler.scheduleWithFixedDelay(this::refreshSearchIndex, 0, SEARCH_INDEX_REFRESH_SECONDS, TimeUnit.SECONDS);
     }
 
-    public GigSwapBot() {
+    // Tests pass their own options (Bot API base URL) and router; nothing is read from Mongo in the background
+    GigSwapBot(DefaultBotOptions options, BotStateStore stateStore, MongoRouter router) {
+        super(options);
+        this.stateStore = stateStore;
+        this.router = router;
+        this.collection = router.primaryCollection(COLLECTION_NAME);
+        this.ownListingsCollection = router.ownReadCollection(COLLECTION_NAME);
+        this.reviewCollection = router.primaryCollection(REVIEW_COLLECTION_NAME);
+        this.browseCollection = router.browseCollection(COLLECTION_NAME);
+        this.browseReviewCollection = router.browseCollection(REVIEW_COLLECTION_NAME);
         clearWebhook();
+        restoreState();
+        Runtime.getRuntime().addShutdownHook(new Thread(stateStore::close));
+    }
+
+    private static MongoRouter connectMongo() {
+        logger.info("Connecting to MongoDB with connection string: {}", CONNECTION_STRING);
+        MongoRouter router = new MongoRouter(CONNECTION_STRING, BROWSE_CONNECTION_STRING, DATABASE_NAME,
+                PRIMARY_MAX_POOL_SIZE, BROWSE_MAX_POOL_SIZE, BROWSE_MAX_STALENESS_SECONDS, tracer.mongoListener());
+        logger.info("MongoClient created successfully");
+        return router;
     }
 
     public void clearWebhook() {
@@ -85,6 +156,104 @@ public class GigSwapBot extends TelegramLongPollingBot {
         }
     }
 
+    private void restoreState() {
+        BotStateStore.State state = stateStore.restore();
+        activeChats.putAll(state.activeChats);
+        state.chatQueues.forEach((sellerChatId, buyers) -> chatQueues.put(sellerChatId, new LinkedList<>(buyers)));
+        userStates.putAll(state.userStates);
+        userListings.putAll(state.userListings);
+
+        // Let everyone who was mid-conversation know they were not dropped, one notice per chat, sent in the background
+        Map<Long, String> notices = new LinkedHashMap<>();
+        for (long chatId : activeChats.keySet()) {
+            notices.putIfAbsent(chatId, "The bot was restarted and your chat has been resumed. Use /endchat to end the chat.");
+        }
+        for (Queue<Long> queue : chatQueues.values()) {
+            for (long chatId : queue) {
+                notices.putIfAbsent(chatId, "The bot was restarted. You are still in the queue for the seller.");
+            }
+        }
+        for (long chatId : new ArrayList<>(userStates.keySet())) {
+            if (LISTING_NUMBER_STATES.contains(userStates.get(chatId))) {
+                // The numbers refer to the page of listings the user was shown, which is not persisted
+                clearUserState(chatId);
+                notices.putIfAbsent(chatId, "The bot was restarted and the listings you were viewing have expired. Please use /buy to browse them again.");
+            } else {
+                notices.putIfAbsent(chatId, "The bot was restarted and your session has been resumed. Please continue where you left off.");
+            }
+        }
+        if (!notices.isEmpty()) {
+            new RestartNotifier(this).send(notices);
+        }
+    }
+
+    private void setUserState(long chatId, String state) {
+        userStates.put(chatId, state);
+        stateStore.putUserState(chatId, state);
+    }
+
+    private void clearUserState(long chatId) {
+        if (userStates.remove(chatId) != null) {
+            stateStore.removeUserState(chatId);
+        }
+    }
+
+    private void startListing(long chatId) {
+        clearFilter(chatId);
+        Map<String, String> listing = new HashMap<>();
+        userListings.put(chatId, listing);
+        stateStore.putListing(chatId, listing);
+    }
+
+    // The filter only serves the chat's filtered pages; drop it once the chat moves to another view or flow
+    private void clearFilter(long chatId) {
+        filterQueries.remove(chatId);
+    }
+
+    private void updateListing(long chatId, String field, String value) {
+        Map<String, String> listing = userListings.get(chatId);
+        listing.put(field, value);
+        stateStore.putListing(chatId, listing);
+    }
+
+    private void clearListing(long chatId) {
+        if (userListings.remove(chatId) != null) {
+            stateStore.removeListing(chatId);
+        }
+    }
+
+    private void connectChat(long chatId, long otherChatId) {
+        activeChats.put(chatId, otherChatId);
+        activeChats.put(otherChatId, chatId);
+        stateStore.putChat(chatId, otherChatId);
+        stateStore.putChat(otherChatId, chatId);
+    }
+
+    private void disconnectChat(long chatId, long otherChatId) {
+        activeChats.remove(chatId);
+        activeChats.remove(otherChatId);
+        stateStore.removeChat(chatId);
+        stateStore.removeChat(otherChatId);
+    }
+
+    private void enqueueBuyer(long sellerChatId, long buyerChatId) {
+        Queue<Long> queue = chatQueues.computeIfAbsent(sellerChatId, k -> new LinkedList<>());
+        queue.offer(buyerChatId);
+        stateStore.putQueue(sellerChatId, queue);
+    }
+
+    private Long pollQueue(long sellerChatId) {
+        Queue<Long> queue = chatQueues.get(sellerChatId);
+        Long nextBuyerId = (queue == null) ? null : queue.poll();
+        if (queue == null || queue.isEmpty()) {
+            chatQueues.remove(sellerChatId);
+            stateStore.removeQueue(sellerChatId);
+        } else {
+            stateStore.putQueue(sellerChatId, queue);
+        }
+        return nextBuyerId;
+    }
+
     @Override
     public String getBotUsername() {
         return "GigSwapBot"; // Replace with your bot's username
@@ -95,52 +264,190 @@ public class GigSwapBot extends TelegramLongPollingBot {
         return BOT_TOKEN;
     }
 
+    @Override
+    public <T extends Serializable, Method extends BotApiMethod<T>> T execute(Method method) throws TelegramApiException {
+        UpdateTracer.Span span = tracer.startSpan("telegram.", method.getMethod());
+        try {
+            return super.execute(method);
+        } finally {
+            tracer.endSpan(span);
+        }
+    }
+
+    @Override
+    public List<Message> execute(SendMediaGroup sendMediaGroup) throws TelegramApiException {
+        UpdateTracer.Span span = tracer.startSpan("telegram.sendMediaGroup");
+        try {
+            return super.execute(sendMediaGroup);
+        } finally {
+            tracer.endSpan(span);
+        }
+    }
+
     @Override
     public void onUpdateReceived(Update update) {
+        UpdateTracer.Trace trace = tracer.begin(update);
+        try {
+            dispatchUpdate(update);
+        } finally {
+            tracer.finish(trace);
+        }
+    }
+
+    private void dispatchUpdate(Update update) {
         if (update.hasMessage() && update.getMessage().hasText()) {
             long chatId = update.getMessage().getChatId();
             String messageText = update.getMessage().getText();
 
             if (messageText.equals("/endchat")) {
-                endChat(chatId);
+                traced("command.", "/endchat", () -> endChat(chatId));
                 return;
             }
 
             if (activeChats.containsKey(chatId)) {
-                forwardMessage(chatId, messageText);
+                traced("chat.", "forward", () -> forwardMessage(chatId, messageText));
                 return;
             }
 
             if (messageText.startsWith("/start ")) {
                 String uniqueId = messageText.split(" ")[1];
-                handleStartWithLink(chatId, uniqueId);
+                traced("command.", "/start", () -> handleStartWithLink(chatId, uniqueId));
                 return;
             }
 
-            switch (messageText.split(" ")[0]) {
-                case "/start":
-                    sendStartMessageWithButtons(chatId);
-                    break;
-                case "/sell":
-                    userStates.put(chatId, "AWAITING_EVENT_NAME");
-                    userListings.put(chatId, new HashMap<>());
-                    sendResponse(chatId, "Please enter the event name:");
-                    break;
-                case "/buy":
-                    listAvailableTickets(chatId, 0);
-                    break;
-                case "/mylistings":
-                    listUserTickets(chatId, 0);
-                    break;
-                case "/delete":
-                    listUserTicketsForDeletion(chatId, 0);
-                    break;
-                default:
-                    handleUserInput(chatId, messageText);
-                    break;
+            String command = messageText.split(" ")[0];
+            // Plain text gets its span from handleUserInput, named after the conversation state
+            if (command.startsWith("/")) {
+                traced("command.", command, () -> handleCommand(chatId, command, messageText));
+            } else {
+                handleUserInput(chatId, messageText);
             }
+        } else if (update.hasMessage()) {
+            long chatId = update.getMessage().getChatId();
+            if (activeChats.containsKey(chatId)) {
+                traced("chat.", "relay", () -> relayMedia(chatId, update.getMessage()));
+            } else if ("AWAITING_IMPORT_FILE".equals(userStates.get(chatId)) && update.getMessage().hasDocument()) {
+                clearUserState(chatId);
+                String fileId = update.getMessage().getDocument().getFileId();
+                importExecutor.execute(() -> importListings(chatId, fileId));
+            }
+        } else if (update.hasInlineQuery()) {
+            traced("inline.", "query", () -> handleInlineQuery(update.getInlineQuery()));
         } else if (update.hasCallbackQuery()) {
-            handleCallback(update.getCallbackQuery().getMessage().getChatId(), update.getCallbackQuery().getData());
+            CallbackQuery callbackQuery = update.getCallbackQuery();
+            answerCallback(callbackQuery.getId());
+            handleCallback(callbackQuery.getMessage().getChatId(), callbackQuery.getMessage().getMessageId(), callbackQuery.getData());
+        }
+    }
+
+    private void traced(String prefix, String name, Runnable handler) {
+        UpdateTracer.Span span = tracer.startSpan(prefix, name);
+        try {
+            handler.run();
+        } finally {
+            tracer.endSpan(span);
+        }
+    }
+
+    private void handleCommand(long chatId, String command, String messageText) {
+        switch (command) {
+            case "/start":
+                sendStartMessageWithButtons(chatId);
+                break;
+            case "/sell":
+                setUserState(chatId, "AWAITING_EVENT_NAME");
+                startListing(chatId);
+                sendResponse(chatId, "Please enter the event name:");
+                break;
+            case "/buy":
+                listAvailableTickets(chatId, 0);
+                break;
+            case "/mylistings":
+                listUserTickets(chatId, 0);
+                break;
+            case "/delete":
+                listUserTicketsForDeletion(chatId, 0);
+                break;
+            case "/import":
+                clearFilter(chatId);
+                setUserState(chatId, "AWAITING_IMPORT_FILE");
+                sendResponse(chatId, "Please upload a CSV or TSV file with the columns:\n"
+                        + String.join(", ", ListingImporter.FIELDS) + "\n\n"
+                        + "The first row must be the header. Event dates use the format dd-MM-yyyy.");
+                break;
+            default:
+                handleUserInput(chatId, messageText);
+                break;
+        }
+    }
+
+    private void answerCallback(String callbackQueryId) {
+        // Stop the client spinner right away; the actual work may take a while
+        AnswerCallbackQuery answer = new AnswerCallbackQuery();
+        answer.setCallbackQueryId(callbackQueryId);
+        try {
+            executeAsync(answer).exceptionally(e -> {
+                logger.warn("Error answering callback query: ", e);
+                return null;
+            });
+        } catch (TelegramApiException e) {
+            logger.warn("Error answering callback query: ", e);
+        }
+    }
+
+    private void refreshSearchIndex() {
+        try {
+            long start = System.nanoTime();
+            searchIndex.rebuild(browseCollection.find()
+                    .projection(new Document("uniqueId", 1).append("eventName", 1).append("quantity", 1)
+                            .append("eventDate", 1).append("location", 1).append("category", 1).append("price", 1)));
+            logger.info("Search index rebuilt with {} live listings in {} ms",
+                    searchIndex.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (Exception e) {
+            logger.error("Error rebuilding search index: ", e);
+        }
+    }
+
+    private void handleInlineQuery(InlineQuery inlineQuery) {
+        List<InlineQueryResult> results = new ArrayList<>();
+        for (ListingSearchIndex.Listing listing : searchIndex.search(inlineQuery.getQuery(), INLINE_RESULT_LIMIT)) {
+            String shareableLink = "https://t.me/GigSwapBot?start=" + listing.getUniqueId();
+
+            InputTextMessageContent content = new InputTextMessageContent();
+            content.setMessageText("Listing Details:\n\n"
+                    + "Event Name: " + listing.getEventName() + "\n"
+                    + "Quantity: " + listing.getQuantity() + "\n"
+                    + "Event Date: " + listing.getEventDate() + "\n"
+                    + "Location: " + listing.getLocation() + "\n"
+                    + "Category: " + listing.getCategory() + "\n"
+                    + "Price: " + listing.getPrice());
+
+            // Callback buttons on inline messages carry no chat, so link back to the bot instead
+            InlineKeyboardButton purchaseButton = new InlineKeyboardButton();
+            purchaseButton.setText("Purchase ticket/s");
+            purchaseButton.setUrl(shareableLink);
+            InlineKeyboardMarkup markupInline = new InlineKeyboardMarkup();
+            markupInline.setKeyboard(Collections.singletonList(Collections.singletonList(purchaseButton)));
+
+            InlineQueryResultArticle article = new InlineQueryResultArticle();
+            article.setId(listing.getUniqueId());
+            article.setTitle(listing.getEventName());
+            article.setDescription(listing.getEventDate() + " \u00B7 " + listing.getLocation() + " \u00B7 "
+                    + listing.getCategory() + " \u00B7 " + listing.getPrice());
+            article.setInputMessageContent(content);
+            article.setReplyMarkup(markupInline);
+            results.add(article);
+        }
+
+        AnswerInlineQuery answer = new AnswerInlineQuery();
+        answer.setInlineQueryId(inlineQuery.getId());
+        answer.setResults(results);
+        answer.setCacheTime(INLINE_CACHE_SECONDS);
+        answer.setIsPersonal(false);
+        try {
+            execute(answer);
+        } catch (TelegramApiException e) {
+            logger.error("Error answering inline query: ", e);
         }
     }
 
@@ -175,47 +482,59 @@ public class GigSwapBot extends TelegramLongPollingBot {
         }
     }
 
-    private void handleCallback(long chatId, String callbackData) {
+    private void handleCallback(long chatId, Integer messageId, String callbackData) {
+        traced("callback.", callbackData.split("_")[0], () -> routeCallback(chatId, messageId, callbackData));
+    }
+
+    private void routeCallback(long chatId, Integer messageId, String callbackData) {
         if (callbackData.equals("buy")) {
             listAvailableTickets(chatId, 0);
         } else if (callbackData.equals("sell")) {
-            userStates.put(chatId, "AWAITING_EVENT_NAME");
-            userListings.put(chatId, new HashMap<>());
+            setUserState(chatId, "AWAITING_EVENT_NAME");
+            startListing(chatId);
             sendResponse(chatId, "Please enter the event name:");
         } else if (callbackData.equals("filter")) {
             sendResponse(chatId, "Please enter the event name to filter by:");
-            userStates.put(chatId, "AWAITING_FILTER_EVENT_NAME");
+            setUserState(chatId, "AWAITING_FILTER_EVENT_NAME");
         } else if (callbackData.startsWith("page_")) {
             int page = Integer.parseInt(callbackData.split("_")[1]);
-            listAvailableTickets(chatId, page);
+            listAvailableTickets(chatId, page, messageId);
         } else if (callbackData.startsWith("mypage_")) {
             int page = Integer.parseInt(callbackData.split("_")[1]);
-            listUserTickets(chatId, page);
+            listUserTickets(chatId, page, messageId);
         } else if (callbackData.startsWith("delpage_")) {
             int page = Integer.parseInt(callbackData.split("_")[1]);
-            listUserTicketsForDeletion(chatId, page);
+            listUserTicketsForDeletion(chatId, page, messageId);
+        } else if (callbackData.startsWith("filterpage_")) {
+            int page = Integer.parseInt(callbackData.split("_")[1]);
+            String eventName = filterQueries.get(chatId);
+            if (eventName == null) {
+                sendResponse(chatId, "Your filter has expired. Please filter again.");
+                return;
+            }
+            filterTicketsByEventName(chatId, eventName, page, messageId);
         } else if (callbackData.startsWith("delete_")) {
             deleteListing(chatId, callbackData.split("_")[1]);
         } else if (callbackData.equals("purchase")) {
             sendResponse(chatId, "Which listing number are you interested in?");
-            userStates.put(chatId, "AWAITING_PURCHASE_LISTING");
+            setUserState(chatId, "AWAITING_PURCHASE_LISTING");
         } else if (callbackData.equals("share")) {
             sendResponse(chatId, "Which listing number would you like to share?");
-            userStates.put(chatId, "AWAITING_SHARE_LISTING_NUMBER");
+            setUserState(chatId, "AWAITING_SHARE_LISTING_NUMBER");
         } else if (callbackData.equals("view_reviews")) {
             sendResponse(chatId, "Which listing number would you like to view reviews for?");
-            userStates.put(chatId, "AWAITING_VIEW_REVIEW_LISTING_NUMBER");
+            setUserState(chatId, "AWAITING_VIEW_REVIEW_LISTING_NUMBER");
         } else if (callbackData.startsWith("purchase_")) {
             String uniqueId = callbackData.split("_")[1];
             handlePurchaseWithLink(chatId, uniqueId);
         } else if (callbackData.startsWith("reviews_")) {
             String sellerChatId = callbackData.split("_")[1];
             int page = Integer.parseInt(callbackData.split("_")[2]);
-            displayReviews(chatId, sellerChatId, page);
+            displayReviews(chatId, sellerChatId, page, messageId);
         } else if (callbackData.startsWith("leave_review_yes_")) {
             String[] parts = callbackData.split("_");
             long sellerChatId = Long.parseLong(parts[3]);
-            userStates.put(chatId, "AWAITING_REVIEW_" + sellerChatId);
+            setUserState(chatId, "AWAITING_REVIEW_" + sellerChatId);
             sendResponse(chatId, "Please leave a review for the seller (1-5 stars):");
         } else if (callbackData.equals("leave_review_no")) {
             sendResponse(chatId, "Thank you! Have a great day.");
@@ -224,7 +543,12 @@ public class GigSwapBot extends TelegramLongPollingBot {
 
     private void handleUserInput(long chatId, String messageText) {
         String state = userStates.get(chatId);
+        // AWAITING_REVIEW_<sellerChatId> is traced under one span name
+        String spanName = state == null ? "none" : state.startsWith("AWAITING_REVIEW_") ? "AWAITING_REVIEW" : state;
+        traced("input.", spanName, () -> routeUserInput(chatId, state, messageText));
+    }
 
+    private void routeUserInput(long chatId, String state, String messageText) {
         if (state == null) {
             sendResponse(chatId, "Please use /sell to start a new listing or /buy to view available listings.");
             return;
@@ -246,99 +570,146 @@ public class GigSwapBot extends TelegramLongPollingBot {
             }
             saveReviewToDatabase(chatId, sellerChatId, rating);
             sendResponse(chatId, "Thank you for your review!");
-            userStates.remove(chatId);
+            clearUserState(chatId);
             return;
         }
 
         switch (state) {
             case "AWAITING_EVENT_NAME":
-                listing.put("eventName", messageText);
-                userStates.put(chatId, "AWAITING_QUANTITY");
+                updateListing(chatId, "eventName", messageText);
+                setUserState(chatId, "AWAITING_QUANTITY");
                 sendResponse(chatId, "How many tickets do you have?");
                 break;
             case "AWAITING_QUANTITY":
-                listing.put("quantity", messageText);
-                userStates.put(chatId, "AWAITING_EVENT_DATE");
+                updateListing(chatId, "quantity", messageText);
+                setUserState(chatId, "AWAITING_EVENT_DATE");
                 sendResponse(chatId, "What is the event date? (e.g., 31-12-2024)");
                 break;
             case "AWAITING_EVENT_DATE":
-                try {
-                    SimpleDateFormat sdf = new SimpleDateFormat("dd-MM-yyyy");
-                    sdf.setLenient(false);
-                    sdf.parse(messageText);  // Just parse to validate the format
-                    listing.put("eventDate", messageText);
-                    userStates.put(chatId, "AWAITING_LOCATION");
+                if (Listings.isValidEventDate(messageText)) {
+                    updateListing(chatId, "eventDate", messageText);
+                    setUserState(chatId, "AWAITING_LOCATION");
                     sendResponse(chatId, "Where is the event located?");
-                } catch (ParseException e) {
+                } else {
                     sendResponse(chatId, "Invalid date format. Please enter the date in the format dd-MM-yyyy (e.g., 31-12-2024).");
                 }
                 break;
             case "AWAITING_LOCATION":
-                listing.put("location", messageText);
-                userStates.put(chatId, "AWAITING_CATEGORY");
+                updateListing(chatId, "location", messageText);
+                setUserState(chatId, "AWAITING_CATEGORY");
                 sendResponse(chatId, "What ticket category is it? (e.g., General standing / Cat 2)");
                 break;
             case "AWAITING_CATEGORY":
-                listing.put("category", messageText);
-                userStates.put(chatId, "AWAITING_PRICE");
+                updateListing(chatId, "category", messageText);
+                setUserState(chatId, "AWAITING_PRICE");
                 sendResponse(chatId, "What is the price per ticket?");
                 break;
             case "AWAITING_PRICE":
-                listing.put("price", messageText);
+                updateListing(chatId, "price", messageText);
                 saveListingToDatabase(chatId, listing);
                 sendResponse(chatId, "Thanks! Your listing has been saved.");
-                userStates.remove(chatId);
-                userListings.remove(chatId);
+                clearUserState(chatId);
+                clearListing(chatId);
                 break;
             case "AWAITING_FILTER_EVENT_NAME":
+                filterQueries.put(chatId, messageText);
                 filterTicketsByEventName(chatId, messageText, 0);
-                userStates.remove(chatId);
+                clearUserState(chatId);
                 break;
             case "AWAITING_PURCHASE_LISTING":
                 initiatePurchase(chatId, Integer.parseInt(messageText));
                 break;
             case "AWAITING_SHARE_LISTING_NUMBER":
                 generateShareableLink(chatId, Integer.parseInt(messageText));
-                userStates.remove(chatId);
+                clearUserState(chatId);
+                break;
+            case "AWAITING_IMPORT_FILE":
+                sendResponse(chatId, "Please upload your listings as a CSV or TSV file.");
                 break;
             case "AWAITING_VIEW_REVIEW_LISTING_NUMBER":
                 displayReviews(chatId, Integer.parseInt(messageText), 0);
-                userStates.remove(chatId);
+                clearUserState(chatId);
                 break;
             default:
                 sendResponse(chatId, "Unknown state. Please start again.");
-                userStates.remove(chatId);
-                userListings.remove(chatId);
+                clearUserState(chatId);
+                clearListing(chatId);
                 break;
         }
     }
 
     private void saveListingToDatabase(long chatId, Map<String, String> listing) {
-        String dt_string = new SimpleDateFormat("dd-MM-yyyy").format(new Date());
-        String uniqueId = UUID.randomUUID().toString();
-        Document doc = new Document("chatId", chatId)
-                .append("eventName", listing.get("eventName"))
-                .append("quantity", listing.get("quantity"))
-                .append("eventDate", listing.get("eventDate"))
-                .append("location", listing.get("location"))
-                .append("category", listing.get("category"))
-                .append("price", listing.get("price"))
-                .append("uniqueId", uniqueId)
-                .append("LAST_UPDATE", dt_string);
-        collection.insertOne(doc);
+        Document doc = Listings.buildListingDocument(chatId, listing);
+        try (ClientSession session = router.startSession(chatId)) {
+            collection.insertOne(session, doc);
+            router.recordWrite(chatId, session);
+        }
+    }
+
+    private void importListings(long chatId, String fileId) {
+        sendResponse(chatId, "Importing your listings...");
+        ListingImporter.Result result = new ListingImporter.Result();
+        try {
+            GetFile getFile = new GetFile();
+            getFile.setFileId(fileId);
+            String filePath = execute(getFile).getFilePath();
+            try (InputStream in = downloadFileAsStream(filePath)) {
+                new ListingImporter(collection, router).importListings(chatId, in, result);
+            }
+        } catch (TelegramApiException | IOException | RuntimeException e) {
+            // RuntimeException covers MongoException from a batch that failed as a whole
+            logger.error("Error importing listings: ", e);
+            if (result.getImported() == 0) {
+                sendResponse(chatId, "Sorry, your listings could not be imported. Please try again.");
+            } else {
+                sendResponse(chatId, "The import stopped with an error after " + result.getImported()
+                        + " listings were saved, covering the rows up to line " + result.getLastWrittenRow()
+                        + ". Please upload the remaining rows again.");
+            }
+            return;
+        }
+
+        List<String> errors = result.getErrors();
+        StringBuilder response = new StringBuilder("Import finished: ")
+                .append(result.getImported()).append(" of ").append(result.getRows()).append(" listings saved.");
+        if (!errors.isEmpty()) {
+            response.append("\n\n").append(errors.size()).append(" problem(s):\n");
+            for (String error : errors.subList(0, Math.min(errors.size(), MAX_INLINE_IMPORT_ERRORS))) {
+                response.append(error).append("\n");
+            }
+        }
+        sendResponse(chatId, response.toString());
+
+        if (errors.size() > MAX_INLINE_IMPORT_ERRORS) {
+            // Too many to fit in a message, send the full report as a file
+            byte[] report = String.join("\n", errors).getBytes(StandardCharsets.UTF_8);
+            SendDocument document = new SendDocument();
+            document.setChatId(String.valueOf(chatId));
+            document.setDocument(new InputFile(new ByteArrayInputStream(report), "import-errors.txt"));
+            try {
+                execute(document);
+            } catch (TelegramApiException e) {
+                logger.error("Error sending import report: ", e);
+            }
+        }
     }
 
     private void listAvailableTickets(long chatId, int page) {
+        listAvailableTickets(chatId, page, null);
+    }
+
+    private void listAvailableTickets(long chatId, int page, Integer messageId) {
         int itemsPerPage = 10;
-        Iterable<Document> documents = collection.find()
+        Iterable<Document> documents = browseCollection.find()
                 .skip(page * itemsPerPage)
                 .limit(itemsPerPage);
-        long totalDocuments = collection.countDocuments();
+        long totalDocuments = browseCollection.countDocuments();
         int totalPages = (int) Math.ceil((double) totalDocuments / itemsPerPage);
 
         List<Document> documentList = new ArrayList<>();
         documents.forEach(documentList::add);
         filteredListings.put(chatId, documentList);
+        clearFilter(chatId);
 
         StringBuilder response = new StringBuilder("Available tickets:\n\n");
         int index = 1;
@@ -354,15 +725,24 @@ public class GigSwapBot extends TelegramLongPollingBot {
         if (response.toString().equals("Available tickets:\n\n")) {
             response = new StringBuilder("No tickets are currently available for sale.");
         }
-        sendResponseWithPageButtons(chatId, response.toString(), page, totalPages, "page_");
+        sendResponseWithPageButtons(chatId, messageId, response.toString(), page, totalPages, "page_");
     }
 
     private void listUserTickets(long chatId, int page) {
+        listUserTickets(chatId, page, null);
+    }
+
+    private void listUserTickets(long chatId, int page, Integer messageId) {
         int itemsPerPage = 10;
-        Iterable<Document> documents = collection.find(new Document("chatId", chatId))
-                .skip(page * itemsPerPage)
-                .limit(itemsPerPage);
-        long totalDocuments = collection.countDocuments(new Document("chatId", chatId));
+        List<Document> documents = new ArrayList<>();
+        long totalDocuments;
+        try (ClientSession session = router.startSession(chatId)) {
+            ownListingsCollection.find(session, new Document("chatId", chatId))
+                    .skip(page * itemsPerPage)
+                    .limit(itemsPerPage)
+                    .into(documents);
+            totalDocuments = ownListingsCollection.countDocuments(session, new Document("chatId", chatId));
+        }
         int totalPages = (int) Math.ceil((double) totalDocuments / itemsPerPage);
 
         StringBuilder response = new StringBuilder("Your listings:\n\n");
@@ -379,15 +759,24 @@ public class GigSwapBot extends TelegramLongPollingBot {
         if (response.toString().equals("Your listings:\n\n")) {
             response = new StringBuilder("You have no listings.");
         }
-        sendResponseWithPageButtons(chatId, response.toString(), page, totalPages, "mypage_", false);
+        sendResponseWithPageButtons(chatId, messageId, response.toString(), page, totalPages, "mypage_", false);
     }
 
     private void listUserTicketsForDeletion(long chatId, int page) {
+        listUserTicketsForDeletion(chatId, page, null);
+    }
+
+    private void listUserTicketsForDeletion(long chatId, int page, Integer messageId) {
         int itemsPerPage = 10;
-        Iterable<Document> documents = collection.find(new Document("chatId", chatId))
-                .skip(page * itemsPerPage)
-                .limit(itemsPerPage);
-        long totalDocuments = collection.countDocuments(new Document("chatId", chatId));
+        List<Document> documents = new ArrayList<>();
+        long totalDocuments;
+        try (ClientSession session = router.startSession(chatId)) {
+            ownListingsCollection.find(session, new Document("chatId", chatId))
+                    .skip(page * itemsPerPage)
+                    .limit(itemsPerPage)
+                    .into(documents);
+            totalDocuments = ownListingsCollection.countDocuments(session, new Document("chatId", chatId));
+        }
         int totalPages = (int) Math.ceil((double) totalDocuments / itemsPerPage);
 
         StringBuilder response = new StringBuilder("Your listings:\n\n");
@@ -418,15 +807,19 @@ public class GigSwapBot extends TelegramLongPollingBot {
         addPaginationButtons(rowsInline, page, totalPages, "delpage_");
 
         markupInline.setKeyboard(rowsInline);
-        sendResponseWithMarkup(chatId, response.toString(), markupInline);
+        sendOrEditPage(chatId, messageId, response.toString(), markupInline);
     }
 
     private void filterTicketsByEventName(long chatId, String eventName, int page) {
+        filterTicketsByEventName(chatId, eventName, page, null);
+    }
+
+    private void filterTicketsByEventName(long chatId, String eventName, int page, Integer messageId) {
         int itemsPerPage = 10;
-        Iterable<Document> documents = collection.find(new Document("eventName", new Document("$regex", eventName).append("$options", "i")))
+        Iterable<Document> documents = browseCollection.find(new Document("eventName", new Document("$regex", eventName).append("$options", "i")))
                 .skip(page * itemsPerPage)
                 .limit(itemsPerPage);
-        long totalDocuments = collection.countDocuments(new Document("eventName", new Document("$regex", eventName).append("$options", "i")));
+        long totalDocuments = browseCollection.countDocuments(new Document("eventName", new Document("$regex", eventName).append("$options", "i")));
         int totalPages = (int) Math.ceil((double) totalDocuments / itemsPerPage);
 
         List<Document> documentList = new ArrayList<>();
@@ -447,30 +840,19 @@ public class GigSwapBot extends TelegramLongPollingBot {
         if (response.toString().equals("Filtered tickets:\n\n")) {
             response = new StringBuilder("No tickets found for the specified event.");
         }
-        sendResponseWithPageButtons(chatId, response.toString(), page, totalPages, "filterpage_");
+        sendResponseWithPageButtons(chatId, messageId, response.toString(), page, totalPages, "filterpage_");
     }
 
-    private void sendResponseWithPageButtons(long chatId, String text, int currentPage, int totalPages, String callbackPrefix) {
-        sendResponseWithPageButtons(chatId, text, currentPage, totalPages, callbackPrefix, true);
+    private void sendResponseWithPageButtons(long chatId, Integer messageId, String text, int currentPage, int totalPages, String callbackPrefix) {
+        sendResponseWithPageButtons(chatId, messageId, text, currentPage, totalPages, callbackPrefix, true);
     }
 
-    private void sendResponseWithPageButtons(long chatId, String text, int currentPage, int totalPages, String callbackPrefix, boolean includePurchaseButton) {
-        SendMessage message = new SendMessage();
-        message.setChatId(String.valueOf(chatId));
-        message.setText(text);
-
+    private void sendResponseWithPageButtons(long chatId, Integer messageId, String text, int currentPage, int totalPages, String callbackPrefix, boolean includePurchaseButton) {
         InlineKeyboardMarkup markupInline = new InlineKeyboardMarkup();
         List<List<InlineKeyboardButton>> rowsInline = new ArrayList<>();
 
         // Page buttons
-        for (int i = 0; i < totalPages; i++) {
-            List<InlineKeyboardButton> rowInline = new ArrayList<>();
-            InlineKeyboardButton pageButton = new InlineKeyboardButton();
-            pageButton.setText("Page " + (i + 1));
-            pageButton.setCallbackData(callbackPrefix + i);
-            rowInline.add(pageButton);
-            rowsInline.add(rowInline);
-        }
+        addPaginationButtons(rowsInline, currentPage, totalPages, callbackPrefix);
 
         if (includePurchaseButton) {
             InlineKeyboardButton filterButton = new InlineKeyboardButton();
@@ -505,16 +887,84 @@ public class GigSwapBot extends TelegramLongPollingBot {
         }
 
         markupInline.setKeyboard(rowsInline);
-        sendResponseWithMarkup(chatId, text, markupInline);
+        sendOrEditPage(chatId, messageId, text, markupInline);
     }
 
     private void addPaginationButtons(List<List<InlineKeyboardButton>> rowsInline, int currentPage, int totalPages, String callbackPrefix) {
-        // Add page buttons
-        for (int i = 0; i < totalPages; i++) {
-            InlineKeyboardButton pageButton = new InlineKeyboardButton();
-            pageButton.setText("Page " + (i + 1));
-            pageButton.setCallbackData(callbackPrefix + i);
-            rowsInline.add(Arrays.asList(pageButton));
+        if (totalPages <= 1) {
+            return;
+        }
+
+        // Show a fixed window of pages around the current one instead of every page
+        int start = Math.max(0, currentPage - PAGE_WINDOW / 2);
+        int end = Math.min(totalPages, start + PAGE_WINDOW);
+        start = Math.max(0, end - PAGE_WINDOW);
+
+        List<InlineKeyboardButton> rowInline = new ArrayList<>();
+        if (currentPage > 0) {
+            rowInline.add(createPageButton("\u00AB", callbackPrefix + (currentPage - 1)));
+        }
+        for (int i = start; i < end; i++) {
+            String label = (i == currentPage) ? "\u00B7 " + (i + 1) + " \u00B7" : String.valueOf(i + 1);
+            rowInline.add(createPageButton(label, callbackPrefix + i));
+        }
+        if (currentPage < totalPages - 1) {
+            rowInline.add(createPageButton("\u00BB", callbackPrefix + (currentPage + 1)));
+        }
+        rowsInline.add(rowInline);
+    }
+
+    private InlineKeyboardButton createPageButton(String text, String callbackData) {
+        InlineKeyboardButton pageButton = new InlineKeyboardButton();
+        pageButton.setText(text);
+        pageButton.setCallbackData(callbackData);
+        return pageButton;
+    }
+
+    private void sendOrEditPage(long chatId, Integer messageId, String text, InlineKeyboardMarkup markupInline) {
+        if (messageId == null) {
+            Message sent = sendResponseWithMarkup(chatId, text, markupInline);
+            if (sent != null) {
+                renderedPages.put(chatId, new RenderedPage(sent.getMessageId(), text, markupInline));
+            }
+            return;
+        }
+
+        // Only the chat's latest paged message is tracked; edits to older ones always go through
+        RenderedPage rendered = renderedPages.get(chatId);
+        boolean sameMessage = rendered != null && rendered.messageId == messageId;
+        boolean textChanged = !sameMessage || rendered.textHash != text.hashCode();
+        boolean markupChanged = !sameMessage || rendered.markupHash != markupInline.hashCode();
+        if (!textChanged && !markupChanged) {
+            // Same page pressed again, nothing to update
+            return;
+        }
+
+        try {
+            if (textChanged) {
+                EditMessageText edit = new EditMessageText();
+                edit.setChatId(String.valueOf(chatId));
+                edit.setMessageId(messageId);
+                edit.setText(text);
+                edit.setReplyMarkup(markupInline);
+                execute(edit);
+            } else {
+                EditMessageReplyMarkup edit = new EditMessageReplyMarkup();
+                edit.setChatId(String.valueOf(chatId));
+                edit.setMessageId(messageId);
+                edit.setReplyMarkup(markupInline);
+                execute(edit);
+            }
+            renderedPages.put(chatId, new RenderedPage(messageId, text, markupInline));
+        } catch (TelegramApiRequestException e) {
+            // Older paged messages are not tracked, so pressing their current page again ends up here
+            if (e.getApiResponse() != null && e.getApiResponse().contains("message is not modified")) {
+                logger.debug("Page already shown in message {} of chat {}", messageId, chatId);
+            } else {
+                logger.error("Error editing message: ", e);
+            }
+        } catch (TelegramApiException e) {
+            logger.error("Error editing message: ", e);
         }
     }
 
@@ -529,20 +979,24 @@ public class GigSwapBot extends TelegramLongPollingBot {
         }
     }
 
-    private void sendResponseWithMarkup(long chatId, String text, InlineKeyboardMarkup markupInline) {
+    private Message sendResponseWithMarkup(long chatId, String text, InlineKeyboardMarkup markupInline) {
         SendMessage message = new SendMessage();
         message.setChatId(String.valueOf(chatId));
         message.setText(text);
         message.setReplyMarkup(markupInline);
         try {
-            execute(message);
+            return execute(message);
         } catch (TelegramApiException e) {
             logger.error("Error sending message: ", e);
+            return null;
         }
     }
 
     private void deleteListing(long chatId, String listingId) {
-        collection.deleteOne(new Document("_id", new org.bson.types.ObjectId(listingId)));
+        try (ClientSession session = router.startSession(chatId)) {
+            collection.deleteOne(session, new Document("_id", new org.bson.types.ObjectId(listingId)));
+            router.recordWrite(chatId, session);
+        }
         sendResponse(chatId, "Listing deleted successfully.");
     }
 
@@ -557,13 +1011,11 @@ public class GigSwapBot extends TelegramLongPollingBot {
         long sellerChatId = listing.getLong("chatId");
         if (activeChats.containsKey(sellerChatId)) {
             sendResponse(chatId, "The seller is currently in a chat with another buyer. You have been added to the queue.");
-            chatQueues.putIfAbsent(sellerChatId, new LinkedList<>());
-            chatQueues.get(sellerChatId).offer(chatId);
+            enqueueBuyer(sellerChatId, chatId);
             return;
         }
 
-        activeChats.put(chatId, sellerChatId);
-        activeChats.put(sellerChatId, chatId);
+        connectChat(chatId, sellerChatId);
 
         sendResponse(chatId, "You are now connected with the seller. Use /endchat to end the chat.");
         sendResponse(sellerChatId, "Buyer is interested in:\n\n"
@@ -629,13 +1081,11 @@ public class GigSwapBot extends TelegramLongPollingBot {
         long sellerChatId = listing.getLong("chatId");
         if (activeChats.containsKey(sellerChatId)) {
             sendResponse(chatId, "The seller is currently in a chat with another buyer. You have been added to the queue.");
-            chatQueues.putIfAbsent(sellerChatId, new LinkedList<>());
-            chatQueues.get(sellerChatId).offer(chatId);
+            enqueueBuyer(sellerChatId, chatId);
             return;
         }
 
-        activeChats.put(chatId, sellerChatId);
-        activeChats.put(sellerChatId, chatId);
+        connectChat(chatId, sellerChatId);
 
         sendResponse(chatId, "You are now connected with the seller. Use /endchat to end the chat.");
         sendResponse(sellerChatId, "Buyer is interested in:\n\n"
@@ -657,6 +1107,105 @@ public class GigSwapBot extends TelegramLongPollingBot {
         }
     }
 
+    private void relayMedia(long chatId, Message message) {
+        if (message.getMediaGroupId() != null) {
+            queueAlbumItem(chatId, message);
+            return;
+        }
+
+        Long recipientChatId = activeChats.get(chatId);
+        if (recipientChatId == null) {
+            return;
+        }
+        copyMessage(chatId, recipientChatId, message.getMessageId());
+    }
+
+    private void copyMessage(long fromChatId, long toChatId, Integer messageId) {
+        // Telegram copies the media server-side, so no file bytes pass through the bot
+        CopyMessage copy = new CopyMessage();
+        copy.setChatId(String.valueOf(toChatId));
+        copy.setFromChatId(String.valueOf(fromChatId));
+        copy.setMessageId(messageId);
+        try {
+            execute(copy);
+        } catch (TelegramApiException e) {
+            logger.error("Error relaying message: ", e);
+        }
+    }
+
+    private void queueAlbumItem(long chatId, Message message) {
+        String key = chatId + ":" + message.getMediaGroupId();
+        // Add under the map's lock so an item cannot land in an album flushAlbum has already removed
+        pendingAlbums.compute(key, (k, album) -> {
+            if (album == null) {
+                album = new ArrayList<>();
+                albumScheduler.schedule(() -> flushAlbum(chatId, k), ALBUM_FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+            album.add(message);
+            return album;
+        });
+    }
+
+    private void flushAlbum(long chatId, String key) {
+        List<Message> album = pendingAlbums.remove(key);
+        Long recipientChatId = activeChats.get(chatId);
+        if (album == null || recipientChatId == null) {
+            return;
+        }
+
+        List<Message> items = new ArrayList<>(album);
+        items.sort(Comparator.comparing(Message::getMessageId));
+
+        List<InputMedia> medias = new ArrayList<>();
+        for (Message item : items) {
+            InputMedia media = toInputMedia(item);
+            if (media == null) {
+                break;
+            }
+            medias.add(media);
+        }
+
+        // sendMediaGroup needs 2-10 items of a supported type; copy one by one otherwise
+        if (medias.size() != items.size() || medias.size() < 2 || medias.size() > 10) {
+            copyEach(chatId, recipientChatId, items);
+            return;
+        }
+
+        try {
+            execute(new SendMediaGroup(String.valueOf(recipientChatId), medias));
+        } catch (TelegramApiException e) {
+            // e.g. mixed item types or an expired file_id; copying item by item still gets them across
+            logger.warn("Error relaying album, copying its items one by one: ", e);
+            copyEach(chatId, recipientChatId, items);
+        }
+    }
+
+    private void copyEach(long fromChatId, long toChatId, List<Message> items) {
+        for (Message item : items) {
+            copyMessage(fromChatId, toChatId, item.getMessageId());
+        }
+    }
+
+    private InputMedia toInputMedia(Message message) {
+        InputMedia media;
+        if (message.hasPhoto()) {
+            // Sizes are sorted ascending, the last one is the original
+            List<PhotoSize> sizes = message.getPhoto();
+            media = new InputMediaPhoto(sizes.get(sizes.size() - 1).getFileId());
+        } else if (message.hasVideo()) {
+            media = new InputMediaVideo(message.getVideo().getFileId());
+        } else if (message.hasDocument()) {
+            media = new InputMediaDocument(message.getDocument().getFileId());
+        } else if (message.hasAudio()) {
+            media = new InputMediaAudio(message.getAudio().getFileId());
+        } else {
+            return null;
+        }
+        media.setCaption(message.getCaption());
+        media.setCaptionEntities(message.getCaptionEntities());
+        return media;
+    }
+
     private void endChat(long chatId) {
         Long otherChatId = activeChats.get(chatId);
         if (otherChatId == null) {
@@ -666,8 +1215,7 @@ public class GigSwapBot extends TelegramLongPollingBot {
 
         logger.info("Ending chat between {} and {}", chatId, otherChatId);
 
-        activeChats.remove(chatId);
-        activeChats.remove(otherChatId);
+        disconnectChat(chatId, otherChatId);
 
         logger.info("Removed chat from activeChats map");
 
@@ -693,16 +1241,13 @@ public class GigSwapBot extends TelegramLongPollingBot {
 
         sendResponseWithMarkup(chatId, "Would you like to leave a review for the seller?", markupInline);
 
-        Queue<Long> queue = chatQueues.get(otherChatId);
-        if (queue != null && !queue.isEmpty()) {
-            long nextBuyerId = queue.poll();
-            activeChats.put(otherChatId, nextBuyerId);
-            activeChats.put(nextBuyerId, otherChatId);
+        Long nextBuyerId = pollQueue(otherChatId);
+        if (nextBuyerId != null) {
+            connectChat(otherChatId, nextBuyerId);
             sendResponse(otherChatId, "You are now connected with the next buyer in the queue.");
             sendResponse(nextBuyerId, "You are now connected with the seller. Use /endchat to end the chat.");
             logger.info("Connected {} with {}", nextBuyerId, otherChatId);
         } else {
-            chatQueues.remove(otherChatId);
             logger.info("No more buyers in queue for {}", otherChatId);
         }
     }
@@ -714,7 +1259,10 @@ public class GigSwapBot extends TelegramLongPollingBot {
                 .append("sellerChatId", sellerChatId)
                 .append("rating", rating)
                 .append("timestamp", new Date());
-        reviewCollection.insertOne(reviewDoc);
+        try (ClientSession session = router.startSession(buyerChatId)) {
+            reviewCollection.insertOne(session, reviewDoc);
+            router.recordWrite(buyerChatId, session);
+        }
     }
 
     private void displayReviews(long chatId, int listingNumber, int page) {
@@ -726,15 +1274,15 @@ public class GigSwapBot extends TelegramLongPollingBot {
 
         Document listing = listings.get(listingNumber - 1);
         long sellerChatId = listing.getLong("chatId");
-        displayReviews(chatId, String.valueOf(sellerChatId), page);
+        displayReviews(chatId, String.valueOf(sellerChatId), page, null);
     }
 
-    private void displayReviews(long chatId, String sellerChatId, int page) {
+    private void displayReviews(long chatId, String sellerChatId, int page, Integer messageId) {
         int itemsPerPage = 10;
-        Iterable<Document> reviews = reviewCollection.find(new Document("sellerChatId", Long.parseLong(sellerChatId)))
+        Iterable<Document> reviews = browseReviewCollection.find(new Document("sellerChatId", Long.parseLong(sellerChatId)))
                 .skip(page * itemsPerPage)
                 .limit(itemsPerPage);
-        long totalDocuments = reviewCollection.countDocuments(new Document("sellerChatId", Long.parseLong(sellerChatId)));
+        long totalDocuments = browseReviewCollection.countDocuments(new Document("sellerChatId", Long.parseLong(sellerChatId)));
         int totalPages = (int) Math.ceil((double) totalDocuments / itemsPerPage);
 
         double totalRating = 0;
@@ -757,40 +1305,44 @@ public class GigSwapBot extends TelegramLongPollingBot {
         if (response.toString().equals("Seller Reviews:\n\n")) {
             response = new StringBuilder("No reviews found for this seller.");
         }
-        sendResponseWithReviewPageButtons(chatId, response.toString(), page, totalPages, "reviews_" + sellerChatId + "_");
+        sendResponseWithReviewPageButtons(chatId, messageId, response.toString(), page, totalPages, "reviews_" + sellerChatId + "_");
     }
 
-    private void sendResponseWithReviewPageButtons(long chatId, String text, int currentPage, int totalPages, String callbackPrefix) {
-        SendMessage message = new SendMessage();
-        message.setChatId(String.valueOf(chatId));
-        message.setText(text);
-
+    private void sendResponseWithReviewPageButtons(long chatId, Integer messageId, String text, int currentPage, int totalPages, String callbackPrefix) {
         InlineKeyboardMarkup markupInline = new InlineKeyboardMarkup();
         List<List<InlineKeyboardButton>> rowsInline = new ArrayList<>();
 
         // Page buttons
-        for (int i = 0; i < totalPages; i++) {
-            List<InlineKeyboardButton> rowInline = new ArrayList<>();
-            InlineKeyboardButton pageButton = new InlineKeyboardButton();
-            pageButton.setText("Page " + (i + 1));
-            pageButton.setCallbackData(callbackPrefix + i);
-            rowInline.add(pageButton);
-            rowsInline.add(rowInline);
-        }
+        addPaginationButtons(rowsInline, currentPage, totalPages, callbackPrefix);
 
         markupInline.setKeyboard(rowsInline);
-        sendResponseWithMarkup(chatId, text, markupInline);
+        sendOrEditPage(chatId, messageId, text, markupInline);
     }
 
     public static void main(String[] args) {
         try {
             logger.info("Initializing Database...");
-            // Database and collection are already initialized in the static block
+            // Database and collections are set up by the GigSwapBot constructor
             logger.info("Bot Started...");
+            if (TRACE_DUMP_FILE != null) {
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> tracer.dumpTo(Paths.get(TRACE_DUMP_FILE))));
+            }
             TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
             botsApi.registerBot(new GigSwapBot());
         } catch (TelegramApiException e) {
             logger.error("Error initializing bot: ", e);
         }
     }
+
+    private static class RenderedPage {
+        private final int messageId;
+        private final int textHash;
+        private final int markupHash;
+
+        private RenderedPage(int messageId, String text, InlineKeyboardMarkup markup) {
+            this.messageId = messageId;
+            this.textHash = text.hashCode();
+            this.markupHash = markup.hashCode();
+        }
+    }
 }
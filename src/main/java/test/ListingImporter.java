@@ -0,0 +1,187 @@
+package test;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import org.bson.Document;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Imports listings from an uploaded CSV/TSV file. The file is read one line at a time and
+// rows are inserted in unordered bulkWrites, so memory use does not grow with the file.
+public class ListingImporter {
+
+    private static final int BATCH_SIZE = 500;
+    static final List<String> FIELDS = Arrays.asList("eventName", "quantity", "eventDate", "location", "category", "price");
+
+    private final MongoCollection<Document> collection;
+    private final MongoRouter router;
+
+    public ListingImporter(MongoCollection<Document> collection, MongoRouter router) {
+        this.collection = collection;
+        this.router = router;
+    }
+
+    // Fills in the caller's result as it goes, so the rows saved so far are known if the import fails midway
+    public void importListings(long chatId, InputStream input, Result result) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+
+        String headerLine = reader.readLine();
+        if (headerLine == null) {
+            result.errors.add("The file is empty.");
+            return;
+        }
+        if (headerLine.startsWith("\uFEFF")) {
+            headerLine = headerLine.substring(1);
+        }
+        char delimiter = headerLine.indexOf('\t') >= 0 ? '\t' : ',';
+
+        int[] columns = mapColumns(parseLine(headerLine, delimiter));
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < FIELDS.size(); i++) {
+            if (columns[i] < 0) {
+                missing.add(FIELDS.get(i));
+            }
+        }
+        if (!missing.isEmpty()) {
+            result.errors.add("The header row is missing columns: " + String.join(", ", missing));
+            return;
+        }
+
+        List<InsertOneModel<Document>> batch = new ArrayList<>(BATCH_SIZE);
+        List<Integer> batchRows = new ArrayList<>(BATCH_SIZE);
+        int rowNumber = 1;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            rowNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            result.rows++;
+
+            List<String> values = parseLine(line, delimiter);
+            Map<String, String> listing = new HashMap<>();
+            String error = null;
+            for (int i = 0; i < FIELDS.size() && error == null; i++) {
+                String value = columns[i] < values.size() ? values.get(columns[i]).trim() : "";
+                if (value.isEmpty()) {
+                    error = "missing " + FIELDS.get(i);
+                }
+                listing.put(FIELDS.get(i), value);
+            }
+            if (error == null && !Listings.isValidEventDate(listing.get("eventDate"))) {
+                error = "invalid event date '" + listing.get("eventDate") + "' (expected dd-MM-yyyy)";
+            }
+            if (error != null) {
+                result.errors.add("Row " + rowNumber + ": " + error);
+                continue;
+            }
+
+            batch.add(new InsertOneModel<>(Listings.buildListingDocument(chatId, listing)));
+            batchRows.add(rowNumber);
+            if (batch.size() == BATCH_SIZE) {
+                flush(chatId, batch, batchRows, result);
+            }
+        }
+        flush(chatId, batch, batchRows, result);
+    }
+
+    private void flush(long chatId, List<InsertOneModel<Document>> batch, List<Integer> batchRows, Result result) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try (ClientSession session = router.startSession(chatId)) {
+            try {
+                result.imported += collection.bulkWrite(session, batch, new BulkWriteOptions().ordered(false)).getInsertedCount();
+            } catch (MongoBulkWriteException e) {
+                result.imported += e.getWriteResult().getInsertedCount();
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    result.errors.add("Row " + batchRows.get(error.getIndex()) + ": " + error.getMessage());
+                }
+            }
+            router.recordWrite(chatId, session);
+        }
+        result.lastWrittenRow = batchRows.get(batchRows.size() - 1);
+        batch.clear();
+        batchRows.clear();
+    }
+
+    private static int[] mapColumns(List<String> header) {
+        int[] columns = new int[FIELDS.size()];
+        Arrays.fill(columns, -1);
+        for (int i = 0; i < header.size(); i++) {
+            // Accept "eventName", "Event Name", "event_name" and so on
+            String name = header.get(i).replaceAll("[^A-Za-z]", "").toLowerCase();
+            for (int f = 0; f < FIELDS.size(); f++) {
+                if (FIELDS.get(f).toLowerCase().equals(name)) {
+                    columns[f] = i;
+                }
+            }
+        }
+        return columns;
+    }
+
+    static List<String> parseLine(String line, char delimiter) {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == delimiter) {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    public static class Result {
+        private int rows;
+        private int imported;
+        private int lastWrittenRow;
+        private final List<String> errors = new ArrayList<>();
+
+        public int getRows() {
+            return rows;
+        }
+
+        public int getImported() {
+            return imported;
+        }
+
+        // Line number of the last row whose batch reached the database, 0 if none did
+        public int getLastWrittenRow() {
+            return lastWrittenRow;
+        }
+
+        public List<String> getErrors() {
+            return errors;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package test;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+// In-memory prefix index over the event names and locations of live listings, used for inline queries.
+// Every word is stored in one sorted array, so a prefix maps to a contiguous range found by binary search.
+// The index is immutable and rebuilt from Mongo in the background; results are cached per query for a few seconds.
+public class ListingSearchIndex {
+
+    private static final DateTimeFormatter EVENT_DATE_FORMAT = DateTimeFormatter.ofPattern("dd-MM-yyyy");
+
+    private static final int EVENT_NAME_WEIGHT = 2;
+    private static final int LOCATION_WEIGHT = 1;
+    private static final int MAX_CACHED_QUERIES = 10000;
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final ThreadLocal<int[]> SCORES = ThreadLocal.withInitial(() -> new int[0]);
+    private static final ThreadLocal<int[]> TERM_BEST = ThreadLocal.withInitial(() -> new int[0]);
+
+    private final long cacheTtlMillis;
+    private volatile Snapshot snapshot = new Snapshot(new Listing[0], new String[0], new int[0], new byte[0]);
+    private final Map<String, CachedResult> cache = new ConcurrentHashMap<>();
+
+    public ListingSearchIndex(long cacheTtlMillis) {
+        this.cacheTtlMillis = cacheTtlMillis;
+    }
+
+    public void rebuild(Iterable<Document> documents) {
+        LocalDate today = LocalDate.now();
+        List<Listing> listings = new ArrayList<>();
+        for (Document doc : documents) {
+            LocalDate eventDate;
+            try {
+                eventDate = LocalDate.parse(doc.getString("eventDate"), EVENT_DATE_FORMAT);
+            } catch (DateTimeParseException | NullPointerException e) {
+                continue;
+            }
+            // The event name is the inline result's title, and Telegram rejects the whole answer if any title is empty
+            String eventName = doc.getString("eventName");
+            if (eventDate.isBefore(today) || doc.getString("uniqueId") == null || eventName == null || eventName.trim().isEmpty()) {
+                continue;
+            }
+            ObjectId id = doc.getObjectId("_id");
+            listings.add(new Listing(doc.getString("uniqueId"), eventName, doc.getString("quantity"),
+                    doc.getString("eventDate"), doc.getString("location"), doc.getString("category"),
+                    doc.getString("price"), id == null ? 0 : id.getTimestamp()));
+        }
+        // Newest first, so listing order doubles as the recency rank
+        listings.sort(Comparator.comparingLong((Listing l) -> l.createdAt).reversed());
+
+        List<String> tokens = new ArrayList<>();
+        List<Integer> postings = new ArrayList<>();
+        List<Boolean> inEventName = new ArrayList<>();
+        for (int i = 0; i < listings.size(); i++) {
+            Listing listing = listings.get(i);
+            for (int w = 0; w < listing.words.length; w++) {
+                tokens.add(listing.words[w]);
+                postings.add(i);
+                inEventName.add(w < listing.eventNameWords);
+            }
+        }
+        Integer[] order = new Integer[tokens.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(tokens::get));
+
+        String[] sortedTokens = new String[order.length];
+        int[] sortedPostings = new int[order.length];
+        byte[] sortedWeights = new byte[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedTokens[i] = tokens.get(order[i]);
+            sortedPostings[i] = postings.get(order[i]);
+            sortedWeights[i] = (byte) fieldWeight(inEventName.get(order[i]));
+        }
+
+        snapshot = new Snapshot(listings.toArray(new Listing[0]), sortedTokens, sortedPostings, sortedWeights);
+        cache.clear();
+    }
+
+    public int size() {
+        return snapshot.listings.length;
+    }
+
+    public List<Listing> search(String query, int limit) {
+        String key = String.join(" ", tokenize(query));
+        String cacheKey = limit + ":" + key;
+        long now = System.currentTimeMillis();
+        CachedResult cached = cache.get(cacheKey);
+        if (cached != null && cached.expiresAt > now) {
+            return cached.results;
+        }
+
+        List<Listing> results = Collections.unmodifiableList(search(snapshot, key, limit));
+        if (cache.size() >= MAX_CACHED_QUERIES) {
+            cache.clear();
+        }
+        cache.put(cacheKey, new CachedResult(results, now + cacheTtlMillis));
+        return results;
+    }
+
+    private static List<Listing> search(Snapshot index, String query, int limit) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty()) {
+            // No query yet, show the most recent listings
+            return new ArrayList<>(Arrays.asList(index.listings).subList(0, Math.min(limit, index.listings.length)));
+        }
+
+        // Drive the search from the term with the smallest prefix range, then intersect the other terms
+        int driver = 0;
+        int[] narrowest = null;
+        for (int t = 0; t < terms.size(); t++) {
+            int[] range = index.prefixRange(terms.get(t));
+            if (narrowest == null || range[1] - range[0] < narrowest[1] - narrowest[0]) {
+                narrowest = range;
+                driver = t;
+            }
+        }
+        String driverTerm = terms.get(driver);
+
+        // Per-listing scores live in reusable scratch arrays; only touched entries are reset afterwards
+        int[] scores = scratch(SCORES, index.listings.length);
+        int[] termBest = scratch(TERM_BEST, index.listings.length);
+        int[] touched = new int[Math.min(index.listings.length, narrowest[1] - narrowest[0])];
+        int touchedCount = 0;
+        for (int i = narrowest[0]; i < narrowest[1]; i++) {
+            int listingIndex = index.postings[i];
+            if (scores[listingIndex] == 0) {
+                touched[touchedCount++] = listingIndex;
+            }
+            scores[listingIndex] = Math.max(scores[listingIndex], index.weight(i, driverTerm));
+        }
+
+        // Every other term must also match; walk its range and keep only listings already in the candidate set
+        for (int t = 0; t < terms.size(); t++) {
+            if (t == driver) {
+                continue;
+            }
+            String term = terms.get(t);
+            int[] range = index.prefixRange(term);
+            for (int i = range[0]; i < range[1]; i++) {
+                int listingIndex = index.postings[i];
+                if (scores[listingIndex] > 0) {
+                    termBest[listingIndex] = Math.max(termBest[listingIndex], index.weight(i, term));
+                }
+            }
+            for (int k = 0; k < touchedCount; k++) {
+                int listingIndex = touched[k];
+                if (scores[listingIndex] > 0) {
+                    scores[listingIndex] = termBest[listingIndex] == 0 ? -1 : scores[listingIndex] + termBest[listingIndex];
+                }
+                termBest[listingIndex] = 0;
+            }
+        }
+
+        // Rank by score, then recency (lower index is newer); keep the top `limit` in a min-heap
+        PriorityQueue<Long> top = new PriorityQueue<>();
+        for (int k = 0; k < touchedCount; k++) {
+            int listingIndex = touched[k];
+            int score = scores[listingIndex];
+            scores[listingIndex] = 0;
+            if (score <= 0) {
+                continue;
+            }
+            long key = ((long) score << 32) | (Integer.MAX_VALUE - listingIndex);
+            if (top.size() < limit) {
+                top.offer(key);
+            } else if (key > top.peek()) {
+                top.poll();
+                top.offer(key);
+            }
+        }
+
+        List<Listing> results = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            results.add(index.listings[Integer.MAX_VALUE - (int) (top.poll() & 0xFFFFFFFFL)]);
+        }
+        Collections.reverse(results);
+        return results;
+    }
+
+    private static int fieldWeight(boolean inEventName) {
+        return (inEventName ? EVENT_NAME_WEIGHT : LOCATION_WEIGHT) * 2;
+    }
+
+    private static int[] scratch(ThreadLocal<int[]> holder, int size) {
+        int[] array = holder.get();
+        if (array.length < size) {
+            array = new int[size];
+            holder.set(array);
+        }
+        return array;
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        for (String word : WORD_SEPARATOR.split(text.toLowerCase())) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    public static class Listing {
+        private final String uniqueId;
+        private final String eventName;
+        private final String quantity;
+        private final String eventDate;
+        private final String location;
+        private final String category;
+        private final String price;
+        private final long createdAt;
+        // Event name words first, then location words
+        private final String[] words;
+        private final int eventNameWords;
+
+        private Listing(String uniqueId, String eventName, String quantity, String eventDate, String location,
+                        String category, String price, long createdAt) {
+            this.uniqueId = uniqueId;
+            this.eventName = eventName;
+            this.quantity = quantity;
+            this.eventDate = eventDate;
+            this.location = location;
+            this.category = category;
+            this.price = price;
+            this.createdAt = createdAt;
+
+            List<String> nameWords = tokenize(eventName);
+            List<String> allWords = new ArrayList<>(nameWords);
+            allWords.addAll(tokenize(location));
+            this.words = allWords.toArray(new String[0]);
+            this.eventNameWords = nameWords.size();
+        }
+
+        public String getUniqueId() {
+            return uniqueId;
+        }
+
+        public String getEventName() {
+            return eventName;
+        }
+
+        public String getQuantity() {
+            return quantity;
+        }
+
+        public String getEventDate() {
+            return eventDate;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public String getCategory() {
+            return category;
+        }
+
+        public String getPrice() {
+            return price;
+        }
+    }
+
+    private static class Snapshot {
+        private final Listing[] listings;
+        private final String[] tokens;
+        private final int[] postings;
+        private final byte[] weights;
+
+        private Snapshot(Listing[] listings, String[] tokens, int[] postings, byte[] weights) {
+            this.listings = listings;
+            this.tokens = tokens;
+            this.postings = postings;
+            this.weights = weights;
+        }
+
+        // Exact words and event-name matches rank higher
+        private int weight(int posting, String term) {
+            return weights[posting] + (tokens[posting].length() == term.length() ? 1 : 0);
+        }
+
+        // Half-open range [from, to) of tokens starting with prefix
+        private int[] prefixRange(String prefix) {
+            return new int[]{lowerBound(prefix), lowerBound(prefix + Character.MAX_VALUE)};
+        }
+
+        private int lowerBound(String key) {
+            int low = 0;
+            int high = tokens.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (tokens[mid].compareTo(key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static class CachedResult {
+        private final List<Listing> results;
+        private final long expiresAt;
+
+        private CachedResult(List<Listing> results, long expiresAt) {
+            this.results = results;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package test;
+
+import org.bson.Document;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+
+// Validation and the stored document shape of a listing, shared by the /sell wizard and the bulk importer.
+// Kept apart from GigSwapBot so using them does not load the bot's configuration or MongoDB clients.
+final class Listings {
+
+    private Listings() {
+    }
+
+    static boolean isValidEventDate(String eventDate) {
+        try {
+            SimpleDateFormat sdf = new SimpleDateFormat("dd-MM-yyyy");
+            sdf.setLenient(false);
+            sdf.parse(eventDate);  // Just parse to validate the format
+            return true;
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    static Document buildListingDocument(long chatId, Map<String, String> listing) {
+        String dt_string = new SimpleDateFormat("dd-MM-yyyy").format(new Date());
+        String uniqueId = UUID.randomUUID().toString();
+        return new Document("chatId", chatId)
+                .append("eventName", listing.get("eventName"))
+                .append("quantity", listing.get("quantity"))
+                .append("eventDate", listing.get("eventDate"))
+                .append("location", listing.get("location"))
+                .append("category", listing.get("category"))
+                .append("price", listing.get("price"))
+                .append("uniqueId", uniqueId)
+                .append("LAST_UPDATE", dt_string);
+    }
+}
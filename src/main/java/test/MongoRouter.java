@@ -0,0 +1,157 @@
+package test;
+
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerApi;
+import com.mongodb.ServerApiVersion;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.event.CommandListener;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Routes queries by class: browse reads go to a secondary-preferred client with bounded staleness,
+// writes go to the primary, and a user's own listings are read from a secondary through a causally
+// consistent session that waits for that user's recent writes.
+public class MongoRouter {
+
+    private static final Logger logger = LoggerFactory.getLogger(MongoRouter.class);
+
+    // Lowest value MongoDB accepts for maxStalenessSeconds; smaller values make every browse read fail
+    static final long MIN_MAX_STALENESS_SECONDS = 90;
+
+    // How long a chat's last write is remembered; older writes are past the staleness bound of any secondary we read from
+    static final long DEFAULT_CAUSAL_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final MongoClient primaryClient;
+    private final MongoClient browseClient;
+    private final String databaseName;
+    private final ReadPreference secondaryReadPreference;
+    private final long causalWindowMillis;
+
+    // Causal position of each chat's last write within the window, so its next session reads after it
+    private final Map<Long, CausalPosition> lastWrites = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+    public MongoRouter(String primaryConnectionString, String browseConnectionString, String databaseName,
+                       int primaryMaxPoolSize, int browseMaxPoolSize, long browseMaxStalenessSeconds,
+                       CommandListener commandListener) {
+        this.databaseName = databaseName;
+        if (browseMaxStalenessSeconds < MIN_MAX_STALENESS_SECONDS) {
+            logger.warn("Browse max staleness of {}s is below the minimum MongoDB accepts, using {}s",
+                    browseMaxStalenessSeconds, MIN_MAX_STALENESS_SECONDS);
+            browseMaxStalenessSeconds = MIN_MAX_STALENESS_SECONDS;
+        }
+        this.secondaryReadPreference = ReadPreference.secondaryPreferred(browseMaxStalenessSeconds, TimeUnit.SECONDS);
+        this.causalWindowMillis = Math.max(DEFAULT_CAUSAL_WINDOW_MILLIS, TimeUnit.SECONDS.toMillis(browseMaxStalenessSeconds));
+        this.primaryClient = MongoClients.create(buildSettings(primaryConnectionString, primaryMaxPoolSize,
+                ReadPreference.primary(), commandListener));
+        this.browseClient = MongoClients.create(buildSettings(browseConnectionString, browseMaxPoolSize,
+                secondaryReadPreference, commandListener));
+    }
+
+    // For tests that supply their own clients
+    MongoRouter(MongoClient primaryClient, MongoClient browseClient, String databaseName) {
+        this(primaryClient, browseClient, databaseName, DEFAULT_CAUSAL_WINDOW_MILLIS);
+    }
+
+    MongoRouter(MongoClient primaryClient, MongoClient browseClient, String databaseName, long causalWindowMillis) {
+        this.primaryClient = primaryClient;
+        this.browseClient = browseClient;
+        this.databaseName = databaseName;
+        this.secondaryReadPreference = ReadPreference.secondaryPreferred(MIN_MAX_STALENESS_SECONDS, TimeUnit.SECONDS);
+        this.causalWindowMillis = causalWindowMillis;
+    }
+
+    private static MongoClientSettings buildSettings(String connectionString, int maxPoolSize,
+                                                     ReadPreference readPreference, CommandListener commandListener) {
+        ServerApi serverApi = ServerApi.builder()
+                .version(ServerApiVersion.V1)
+                .build();
+        return MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(connectionString))
+                .serverApi(serverApi)
+                .readPreference(readPreference)
+                .applyToClusterSettings(builder -> builder.serverSelectionTimeout(60000, TimeUnit.MILLISECONDS))
+                .applyToConnectionPoolSettings(builder -> builder.maxSize(maxPoolSize))
+                .addCommandListener(commandListener)
+                .build();
+    }
+
+    public MongoCollection<Document> primaryCollection(String name) {
+        return primaryClient.getDatabase(databaseName).getCollection(name);
+    }
+
+    public MongoCollection<Document> browseCollection(String name) {
+        return browseClient.getDatabase(databaseName).getCollection(name);
+    }
+
+    // A user's own data, read from a secondary; pass a session from startSession so the read waits for their writes
+    public MongoCollection<Document> ownReadCollection(String name) {
+        return primaryCollection(name).withReadPreference(secondaryReadPreference);
+    }
+
+    public ClientSession startSession(long chatId) {
+        ClientSession session = primaryClient.startSession(ClientSessionOptions.builder()
+                .causallyConsistent(true)
+                .build());
+        CausalPosition position = lastWrites.get(chatId);
+        if (position != null && !position.isExpired(System.currentTimeMillis(), causalWindowMillis)) {
+            if (position.operationTime != null) {
+                session.advanceOperationTime(position.operationTime);
+            }
+            if (position.clusterTime != null) {
+                session.advanceClusterTime(position.clusterTime);
+            }
+        }
+        return session;
+    }
+
+    public void recordWrite(long chatId, ClientSession session) {
+        long now = System.currentTimeMillis();
+        if (session.getOperationTime() != null || session.getClusterTime() != null) {
+            lastWrites.put(chatId, new CausalPosition(session.getOperationTime(), session.getClusterTime(), now));
+        }
+        sweepExpired(now);
+    }
+
+    // One pass per window keeps the map to the chats that wrote recently
+    private void sweepExpired(long now) {
+        long last = lastSweep.get();
+        if (now - last >= causalWindowMillis && lastSweep.compareAndSet(last, now)) {
+            lastWrites.values().removeIf(position -> position.isExpired(now, causalWindowMillis));
+        }
+    }
+
+    int trackedChats() {
+        return lastWrites.size();
+    }
+
+    private static class CausalPosition {
+        private final BsonTimestamp operationTime;
+        private final BsonDocument clusterTime;
+        private final long recordedAt;
+
+        private CausalPosition(BsonTimestamp operationTime, BsonDocument clusterTime, long recordedAt) {
+            this.operationTime = operationTime;
+            this.clusterTime = clusterTime;
+            this.recordedAt = recordedAt;
+        }
+
+        private boolean isExpired(long now, long windowMillis) {
+            return now - recordedAt >= windowMillis;
+        }
+    }
+}
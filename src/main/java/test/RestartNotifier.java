@@ -0,0 +1,78 @@
+package test;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.bots.AbsSender;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Sends the "bot was restarted" notices in the background so startup does not wait on thousands of
+// sendMessage calls. Paced below the Bot API's ~30 messages/s, and a 429 is retried after its retry_after.
+public class RestartNotifier {
+
+    private static final Logger logger = LoggerFactory.getLogger(RestartNotifier.class);
+
+    static final int MESSAGES_PER_SECOND = 25;
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final AbsSender sender;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    public RestartNotifier(AbsSender sender) {
+        this.sender = sender;
+    }
+
+    // Notices are sent in the map's order; the worker thread exits once they are all sent
+    public void send(Map<Long, String> notices) {
+        Map<Long, String> pending = new LinkedHashMap<>(notices);
+        executor.submit(() -> {
+            long intervalNanos = TimeUnit.SECONDS.toNanos(1) / MESSAGES_PER_SECOND;
+            try {
+                for (Map.Entry<Long, String> notice : pending.entrySet()) {
+                    long start = System.nanoTime();
+                    deliver(notice.getKey(), notice.getValue());
+                    TimeUnit.NANOSECONDS.sleep(intervalNanos - (System.nanoTime() - start));
+                }
+                logger.info("Sent {} restart notices", pending.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        executor.shutdown();
+    }
+
+    private void deliver(long chatId, String text) throws InterruptedException {
+        SendMessage message = new SendMessage();
+        message.setChatId(String.valueOf(chatId));
+        message.setText(text);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                sender.execute(message);
+                return;
+            } catch (TelegramApiRequestException e) {
+                if (!isRateLimited(e) || attempt == MAX_ATTEMPTS) {
+                    logger.error("Error sending restart notice to {}: ", chatId, e);
+                    return;
+                }
+                int retryAfter = e.getParameters() != null && e.getParameters().getRetryAfter() != null
+                        ? e.getParameters().getRetryAfter() : 1;
+                logger.warn("Rate limited sending restart notices, retrying in {}s", retryAfter);
+                TimeUnit.SECONDS.sleep(retryAfter);
+            } catch (TelegramApiException e) {
+                logger.error("Error sending restart notice to {}: ", chatId, e);
+                return;
+            }
+        }
+    }
+
+    private static boolean isRateLimited(TelegramApiRequestException e) {
+        return e.getErrorCode() != null && e.getErrorCode() == 429;
+    }
+}
@@ -0,0 +1,212 @@
+package test;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Records one trace per Update on the handling thread and keeps only the slow ones.
+// Spans are opened for the dispatched handler and for Mongo commands and Telegram calls made while the trace is active.
+public class UpdateTracer {
+
+    private static final Logger logger = LoggerFactory.getLogger(UpdateTracer.class);
+
+    private final boolean enabled;
+    private final long slowThresholdNanos;
+    private final Trace[] ringBuffer;
+    private long ringPosition = 0;
+    private final ThreadLocal<Trace> currentTrace = new ThreadLocal<>();
+
+    public UpdateTracer(boolean enabled, long slowThresholdMillis, int bufferSize) {
+        this.enabled = enabled;
+        this.slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis);
+        this.ringBuffer = new Trace[Math.max(1, bufferSize)];
+    }
+
+    public Trace begin(Update update) {
+        if (!enabled) {
+            return null;
+        }
+        Trace trace = new Trace(update.getUpdateId(), describe(update));
+        currentTrace.set(trace);
+        return trace;
+    }
+
+    public void finish(Trace trace) {
+        if (trace == null) {
+            return;
+        }
+        currentTrace.remove();
+        trace.durationNanos = System.nanoTime() - trace.startNanos;
+        if (trace.durationNanos < slowThresholdNanos) {
+            return;
+        }
+
+        synchronized (ringBuffer) {
+            ringBuffer[(int) (ringPosition++ % ringBuffer.length)] = trace;
+        }
+        logger.warn("Slow update: {}", trace.summary());
+    }
+
+    public Span startSpan(String name) {
+        Trace trace = currentTrace.get();
+        if (trace == null) {
+            return null;
+        }
+        Span span = new Span(name, System.nanoTime() - trace.startNanos);
+        trace.spans.add(span);
+        return span;
+    }
+
+    // Builds the span name only when a trace is active, so untraced handlers pay no concatenation
+    public Span startSpan(String prefix, String name) {
+        if (currentTrace.get() == null) {
+            return null;
+        }
+        return startSpan(prefix + name);
+    }
+
+    public void endSpan(Span span) {
+        if (span == null) {
+            return;
+        }
+        Trace trace = currentTrace.get();
+        if (trace != null) {
+            span.durationNanos = System.nanoTime() - trace.startNanos - span.offsetNanos;
+        }
+    }
+
+    public List<Trace> getSlowTraces() {
+        List<Trace> traces = new ArrayList<>();
+        synchronized (ringBuffer) {
+            long start = Math.max(0, ringPosition - ringBuffer.length);
+            for (long i = start; i < ringPosition; i++) {
+                traces.add(ringBuffer[(int) (i % ringBuffer.length)]);
+            }
+        }
+        return traces;
+    }
+
+    public void dumpTo(Path file) {
+        List<Trace> traces = getSlowTraces();
+        if (traces.isEmpty()) {
+            return;
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (Trace trace : traces) {
+                writer.write(trace.format());
+                writer.newLine();
+            }
+            logger.info("Dumped {} slow traces to {}", traces.size(), file);
+        } catch (IOException e) {
+            logger.error("Error dumping traces: ", e);
+        }
+    }
+
+    public CommandListener mongoListener() {
+        return new CommandListener() {
+            @Override
+            public void commandStarted(CommandStartedEvent event) {
+                Trace trace = currentTrace.get();
+                if (trace != null) {
+                    trace.openCommands.put(event.getRequestId(), startSpan("mongo." + event.getCommandName()));
+                }
+            }
+
+            @Override
+            public void commandSucceeded(CommandSucceededEvent event) {
+                Trace trace = currentTrace.get();
+                if (trace != null) {
+                    endSpan(trace.openCommands.remove(event.getRequestId()));
+                }
+            }
+
+            @Override
+            public void commandFailed(CommandFailedEvent event) {
+                Trace trace = currentTrace.get();
+                if (trace != null) {
+                    Span span = trace.openCommands.remove(event.getRequestId());
+                    if (span != null) {
+                        span.name += " (failed)";
+                    }
+                    endSpan(span);
+                }
+            }
+        };
+    }
+
+    private static String describe(Update update) {
+        if (update.hasMessage()) {
+            String text = update.getMessage().getText();
+            if (text != null && text.startsWith("/")) {
+                return "message " + text.split(" ")[0];
+            }
+            return "message";
+        }
+        if (update.hasCallbackQuery() && update.getCallbackQuery().getData() != null) {
+            return "callback " + update.getCallbackQuery().getData().split("_")[0];
+        }
+        if (update.hasInlineQuery()) {
+            return "inline";
+        }
+        return "update";
+    }
+
+    public static class Trace {
+        private final int updateId;
+        private final String label;
+        private final long startNanos = System.nanoTime();
+        private final long startMillis = System.currentTimeMillis();
+        private long durationNanos;
+        private final List<Span> spans = new ArrayList<>();
+        private final Map<Integer, Span> openCommands = new HashMap<>();
+
+        private Trace(int updateId, String label) {
+            this.updateId = updateId;
+            this.label = label;
+        }
+
+        public String summary() {
+            return "update " + updateId + " [" + label + "] took " + TimeUnit.NANOSECONDS.toMillis(durationNanos)
+                    + " ms across " + spans.size() + " spans";
+        }
+
+        public String format() {
+            StringBuilder out = new StringBuilder();
+            out.append(new Date(startMillis)).append(' ').append(summary()).append('\n');
+            for (Span span : spans) {
+                out.append("  +").append(TimeUnit.NANOSECONDS.toMillis(span.offsetNanos)).append(" ms ")
+                        .append(span.name).append(' ')
+                        .append(span.durationNanos < 0 ? "unfinished" : TimeUnit.NANOSECONDS.toMillis(span.durationNanos) + " ms")
+                        .append('\n');
+            }
+            return out.toString();
+        }
+    }
+
+    public static class Span {
+        private String name;
+        private final long offsetNanos;
+        private long durationNanos = -1;
+
+        private Span(String name, long offsetNanos) {
+            this.name = name;
+            this.offsetNanos = offsetNanos;
+        }
+    }
+}
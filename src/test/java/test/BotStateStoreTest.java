@@ -0,0 +1,252 @@
+package test;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Kill-and-restart checks: a writer process is killed without close() and a fresh store must
+// restore exactly what it had logged, minus at most a torn final record.
+class BotStateStoreTest {
+
+    private static final int OPS = 300;
+    private static final long LAST_CHAT_ID = 999_999L;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void restoresEverythingAfterKill() throws Exception {
+        // A 1 s checkpoint interval makes the killed process leave both a snapshot and a log behind
+        killWriterAfterScenario(1);
+
+        State expected = new State();
+        scenario(null, expected);
+        lastOp(null, expected);
+        assertStateEquals(expected, restoreAndClose());
+    }
+
+    @Test
+    void dropsOnlyTheTornRecordWhenLogTailIsCut() throws Exception {
+        // No checkpoint after the initial one, so the last record is the final bytes of the log
+        killWriterAfterScenario(3600);
+        Path log = dir.resolve("state.log");
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        State expected = new State();
+        scenario(null, expected);
+        assertStateEquals(expected, restoreAndClose());
+        assertTrue(corruptFiles().isEmpty(), "a torn tail is not damage");
+    }
+
+    @Test
+    void keepsRecordsBeforeDamageAndSetsDamagedFilesAside() throws Exception {
+        BotStateStore store = new BotStateStore(dir.toString(), 3600);
+        store.restore();
+        State expected = new State();
+        scenario(store, expected);
+        store.sync();
+
+        // An unknown record type in the middle of the log, followed by a record that must not be applied
+        Path log = dir.resolve("state.log");
+        Files.write(log, new byte[]{99, 0, 0, 0, 0, 0, 0, 0, 1}, StandardOpenOption.APPEND);
+        byte[] damagedLog = Files.readAllBytes(log);
+        byte[] snapshot = Files.readAllBytes(dir.resolve("state.snap"));
+
+        assertStateEquals(expected, restoreAndClose());
+
+        List<Path> corrupt = corruptFiles();
+        assertEquals(2, corrupt.size(), corrupt.toString());
+        for (Path file : corrupt) {
+            byte[] original = file.getFileName().toString().startsWith("state.log") ? damagedLog : snapshot;
+            assertArrayEquals(original, Files.readAllBytes(file));
+        }
+
+        // The checkpoint after the recovery holds the salvaged state
+        assertStateEquals(expected, restoreAndClose());
+        assertEquals(2, corruptFiles().size());
+    }
+
+    @Test
+    void keepsEntriesReadBeforeSnapshotDamage() throws Exception {
+        BotStateStore store = new BotStateStore(dir.toString(), 3600);
+        store.restore();
+        State expected = new State();
+        scenario(store, expected);
+        store.close();
+
+        Path snapshot = dir.resolve("state.snap");
+        byte[] original = Files.readAllBytes(snapshot);
+        Files.write(snapshot, Arrays.copyOf(original, original.length / 2));
+
+        BotStateStore.State restored = restoreAndClose();
+        // Chats are written first, so a snapshot cut in half still has all of them
+        assertEquals(expected.activeChats, restored.activeChats);
+        // The log belongs to the damaged snapshot, so both are set aside
+        List<Path> corrupt = corruptFiles();
+        assertEquals(2, corrupt.size(), corrupt.toString());
+        assertEquals(original.length / 2, Files.size(corrupt.get(1)));
+    }
+
+    private void killWriterAfterScenario(long checkpointIntervalSeconds) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Writer.class.getName(), dir.toString(), String.valueOf(checkpointIntervalSeconds))
+                .redirectErrorStream(true)
+                .start();
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = out.readLine()) != null && !line.equals(Writer.READY)) {
+                // Skip the child's log output
+            }
+            assertEquals(Writer.READY, line, "writer process exited early");
+            process.destroyForcibly();
+            assertTrue(process.waitFor(10, TimeUnit.SECONDS));
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    // Closing waits for the checkpoint restore() schedules, so nothing writes to the directory afterwards
+    private BotStateStore.State restoreAndClose() {
+        BotStateStore store = new BotStateStore(dir.toString(), 3600);
+        BotStateStore.State state = store.restore();
+        store.close();
+        return state;
+    }
+
+    private List<Path> corruptFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.getFileName().toString().contains(".corrupt-")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void assertStateEquals(State expected, BotStateStore.State actual) {
+        assertEquals(expected.activeChats, actual.activeChats);
+        assertEquals(expected.chatQueues, actual.chatQueues);
+        assertEquals(expected.userStates, actual.userStates);
+        assertEquals(expected.userListings, actual.userListings);
+    }
+
+    // Applies the same changes to the store (when given) and to the expected state
+    private static void scenario(BotStateStore store, State expected) {
+        for (long i = 1; i <= OPS; i++) {
+            long buyer = 100_000 + i;
+            putChat(store, expected, i, buyer);
+            putChat(store, expected, buyer, i);
+            if (i % 5 == 0) {
+                removeChat(store, expected, i);
+                removeChat(store, expected, buyer);
+            }
+
+            List<Long> queue = Arrays.asList(buyer, buyer + 1, buyer + 2);
+            if (store != null) {
+                store.putQueue(i, queue);
+            }
+            expected.chatQueues.put(i, queue);
+            if (i % 3 == 0) {
+                if (store != null) {
+                    store.removeQueue(i);
+                }
+                expected.chatQueues.remove(i);
+            }
+
+            String userState = i % 2 == 0 ? "AWAITING_PRICE" : "AWAITING_REVIEW_" + buyer;
+            if (store != null) {
+                store.putUserState(i, userState);
+            }
+            expected.userStates.put(i, userState);
+            if (i % 4 == 0) {
+                if (store != null) {
+                    store.removeUserState(i);
+                }
+                expected.userStates.remove(i);
+            }
+
+            putListing(store, expected, i, "Event " + i + " \u266B");
+            if (i % 7 == 0) {
+                if (store != null) {
+                    store.removeListing(i);
+                }
+                expected.userListings.remove(i);
+            }
+        }
+    }
+
+    private static void lastOp(BotStateStore store, State expected) {
+        putListing(store, expected, LAST_CHAT_ID, "The last record, long enough that cutting 3 bytes leaves it torn");
+    }
+
+    private static void putChat(BotStateStore store, State expected, long chatId, long otherChatId) {
+        if (store != null) {
+            store.putChat(chatId, otherChatId);
+        }
+        expected.activeChats.put(chatId, otherChatId);
+    }
+
+    private static void removeChat(BotStateStore store, State expected, long chatId) {
+        if (store != null) {
+            store.removeChat(chatId);
+        }
+        expected.activeChats.remove(chatId);
+    }
+
+    private static void putListing(BotStateStore store, State expected, long chatId, String eventName) {
+        Map<String, String> listing = new HashMap<>();
+        listing.put("eventName", eventName);
+        listing.put("price", String.valueOf(chatId));
+        if (store != null) {
+            store.putListing(chatId, listing);
+        }
+        expected.userListings.put(chatId, listing);
+    }
+
+    private static class State {
+        private final Map<Long, Long> activeChats = new HashMap<>();
+        private final Map<Long, List<Long>> chatQueues = new HashMap<>();
+        private final Map<Long, String> userStates = new HashMap<>();
+        private final Map<Long, Map<String, String>> userListings = new HashMap<>();
+    }
+
+    // Runs in a separate JVM so the test can kill it the way a crash or OOM killer would
+    static class Writer {
+        static final String READY = "WRITER READY";
+
+        public static void main(String[] args) throws Exception {
+            BotStateStore store = new BotStateStore(args[0], Long.parseLong(args[1]));
+            store.restore();
+            scenario(store, new State());
+            store.sync();
+            if (Long.parseLong(args[1]) <= 1) {
+                // Let at least one checkpoint fold the first part into the snapshot
+                Thread.sleep(1500);
+            }
+            lastOp(store, new State());
+            store.sync();
+            System.out.println(READY);
+            System.out.flush();
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package test;
+
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertOneModel;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Runs the importer against an in-memory collection, so the timings cover reading, validating
+// and batching rows but not the round trips to MongoDB.
+class ListingImporterTest {
+
+    private static final long CHAT_ID = 7L;
+    private static final String HEADER = "Event Name,quantity,event_date,Location,category,price";
+
+    @Test
+    void importsTenThousandRowsInBatches() throws Exception {
+        int rows = 10_000;
+        StringBuilder csv = new StringBuilder(HEADER).append('\n');
+        for (int i = 0; i < rows; i++) {
+            csv.append("\"Artist ").append(i).append(", World Tour\",2,01-06-2099,Berlin,Concert,").append(50 + i % 100).append('\n');
+        }
+        FakeCollection fake = null;
+
+        // The first run also pays for class loading and JIT warm-up
+        ListingImporter.Result result = null;
+        long millis = 0;
+        for (int run = 1; run <= 2; run++) {
+            fake = new FakeCollection(-1);
+            result = new ListingImporter.Result();
+            long start = System.nanoTime();
+            new ListingImporter(fake.collection(), new FakeRouter()).importListings(CHAT_ID, input(csv.toString()), result);
+            millis = (System.nanoTime() - start) / 1_000_000;
+            System.out.printf("Run %d: imported %d rows in %d ms (%d bulkWrites, excluding database time)%n",
+                    run, result.getImported(), millis, fake.batchSizes.size());
+        }
+
+        // Generous bound: the point is that a 10k-row file is handled in seconds, not minutes
+        assertTrue(millis < 5000, "10k rows took " + millis + " ms");
+        assertEquals(rows, result.getRows());
+        assertEquals(rows, result.getImported());
+        assertTrue(result.getErrors().isEmpty(), result.getErrors().toString());
+        assertEquals(20, fake.batchSizes.size());
+        assertEquals(Collections.nCopies(20, 500), fake.batchSizes);
+        assertEquals(rows + 1, result.getLastWrittenRow());
+        Document first = fake.documents.get(0);
+        assertEquals("Artist 0, World Tour", first.getString("eventName"));
+        assertEquals(CHAT_ID, first.getLong("chatId"));
+    }
+
+    @Test
+    void reportsRowErrorsAndKeepsValidRows() throws Exception {
+        String csv = HEADER + "\n"
+                + "Gig A,1,01-06-2099,Paris,Concert,10\n"
+                + "\n"
+                + "Gig B,,01-06-2099,Paris,Concert,10\n"
+                + "Gig C,1,2099-06-01,Paris,Concert,10\n"
+                + "Gig D,1,31-12-2099,Paris,Concert,10\n";
+        FakeCollection fake = new FakeCollection(-1);
+
+        ListingImporter.Result result = new ListingImporter.Result();
+        new ListingImporter(fake.collection(), new FakeRouter()).importListings(CHAT_ID, input(csv), result);
+
+        assertEquals(4, result.getRows());
+        assertEquals(2, result.getImported());
+        assertEquals(2, result.getErrors().size());
+        assertTrue(result.getErrors().get(0).startsWith("Row 4: missing quantity"), result.getErrors().get(0));
+        assertTrue(result.getErrors().get(1).startsWith("Row 5: invalid event date"), result.getErrors().get(1));
+    }
+
+    @Test
+    void keepsCountOfSavedRowsWhenABatchFails() {
+        StringBuilder csv = new StringBuilder(HEADER).append('\n');
+        for (int i = 0; i < 2000; i++) {
+            csv.append("Gig ").append(i).append(",1,01-06-2099,Paris,Concert,10\n");
+        }
+        // The third bulkWrite fails as a whole, as a dropped connection would
+        FakeCollection fake = new FakeCollection(2);
+
+        ListingImporter.Result result = new ListingImporter.Result();
+        assertThrows(MongoException.class, () ->
+                new ListingImporter(fake.collection(), new FakeRouter()).importListings(CHAT_ID, input(csv.toString()), result));
+        assertEquals(1000, result.getImported());
+        assertEquals(1001, result.getLastWrittenRow());
+    }
+
+    private static InputStream input(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static class FakeRouter extends MongoRouter {
+        FakeRouter() {
+            super(OfflineMongo.client(), OfflineMongo.client(), "test");
+        }
+
+        @Override
+        public ClientSession startSession(long chatId) {
+            return (ClientSession) Proxy.newProxyInstance(ClientSession.class.getClassLoader(),
+                    new Class<?>[]{ClientSession.class}, (proxy, method, args) -> null);
+        }
+
+        @Override
+        public void recordWrite(long chatId, ClientSession session) {
+        }
+    }
+
+    private static class FakeCollection {
+        private final int failingBatch;
+        private final List<Integer> batchSizes = new ArrayList<>();
+        private final List<Document> documents = new ArrayList<>();
+
+        private FakeCollection(int failingBatch) {
+            this.failingBatch = failingBatch;
+        }
+
+        @SuppressWarnings("unchecked")
+        private MongoCollection<Document> collection() {
+            return (MongoCollection<Document>) Proxy.newProxyInstance(MongoCollection.class.getClassLoader(),
+                    new Class<?>[]{MongoCollection.class}, (proxy, method, args) -> {
+                        if (!method.getName().equals("bulkWrite")) {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                        if (batchSizes.size() == failingBatch) {
+                            throw new MongoException("connection reset");
+                        }
+                        List<InsertOneModel<Document>> batch = (List<InsertOneModel<Document>>) args[1];
+                        batchSizes.add(batch.size());
+                        batch.forEach(model -> documents.add(model.getDocument()));
+                        return BulkWriteResult.acknowledged(batch.size(), 0, 0, 0,
+                                Collections.emptyList(), Collections.emptyList());
+                    });
+        }
+    }
+}
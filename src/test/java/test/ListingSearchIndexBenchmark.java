@@ -0,0 +1,106 @@
+package test;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Plain main harness for inline search throughput; not run by mvn test.
+//   mvn -q test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+//   java -cp target/classes:target/test-classes:$(cat target/cp.txt) test.ListingSearchIndexBenchmark [listings] [seconds]
+public class ListingSearchIndexBenchmark {
+
+    private static final String[] ARTISTS = {
+            "Taylor Swift", "Coldplay", "Ed Sheeran", "Beyonce", "Metallica", "Adele", "The Weeknd", "Billie Eilish",
+            "Arctic Monkeys", "Foo Fighters", "Dua Lipa", "Harry Styles", "Rammstein", "Muse", "Radiohead",
+            "Kendrick Lamar", "Bad Bunny", "Imagine Dragons", "Pink", "Bruno Mars"};
+    private static final String[] PLACES = {"Berlin Olympiastadion", "London Wembley", "Paris La Defense Arena",
+            "Amsterdam Ziggo Dome", "Madrid Bernabeu", "Milan San Siro"};
+    private static final String[] QUERIES = {"", "t", "tay", "taylor swift", "coldplay berlin", "world tour",
+            "tour 12", "wembley", "metal", "ed", "arctic monkeys london", "zzz", "b", "madrid", "imagine 3"};
+
+    public static void main(String[] args) throws Exception {
+        int listings = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        List<Document> documents = generate(listings);
+        ListingSearchIndex uncached = new ListingSearchIndex(0);
+        for (int i = 0; i < 3; i++) {
+            long start = System.nanoTime();
+            uncached.rebuild(documents);
+            System.out.printf("rebuild %d listings: %d ms%n", uncached.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+
+        // A zero TTL makes every search miss the cache
+        System.out.println("per query, uncached (p50 / p99 microseconds):");
+        for (String query : QUERIES) {
+            long[] samples = new long[2000];
+            for (int i = 0; i < samples.length; i++) {
+                long start = System.nanoTime();
+                uncached.search(query, 20);
+                samples[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(samples);
+            System.out.printf("  %-24s %8.1f %8.1f%n", "'" + query + "'",
+                    samples[samples.length / 2] / 1000.0, samples[samples.length * 99 / 100] / 1000.0);
+        }
+
+        ListingSearchIndex cached = new ListingSearchIndex(TimeUnit.SECONDS.toMillis(10));
+        cached.rebuild(documents);
+        int threads = Runtime.getRuntime().availableProcessors();
+        System.out.printf("mixed queries, uncached: %,.0f qps on 1 thread, %,.0f qps on %d threads%n",
+                qps(uncached, 1, seconds), qps(uncached, threads, seconds), threads);
+        System.out.printf("mixed queries, cached:   %,.0f qps on 1 thread, %,.0f qps on %d threads%n",
+                qps(cached, 1, seconds), qps(cached, threads, seconds), threads);
+    }
+
+    private static double qps(ListingSearchIndex index, int threads, int seconds) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<Long>> counts = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            counts.add(pool.submit(() -> {
+                long done = 0;
+                while (System.nanoTime() < deadline) {
+                    index.search(QUERIES[(int) ((done + offset) % QUERIES.length)], 20);
+                    done++;
+                }
+                return done;
+            }));
+        }
+        long total = 0;
+        for (Future<Long> count : counts) {
+            total += count.get();
+        }
+        pool.shutdown();
+        return total / (double) seconds;
+    }
+
+    private static List<Document> generate(int count) {
+        DateTimeFormatter format = DateTimeFormatter.ofPattern("dd-MM-yyyy");
+        LocalDate today = LocalDate.now();
+        Random random = new Random(42);
+        List<Document> documents = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            documents.add(new Document("_id", new ObjectId())
+                    .append("uniqueId", "listing-" + i)
+                    .append("eventName", ARTISTS[random.nextInt(ARTISTS.length)] + " World Tour " + random.nextInt(50))
+                    .append("quantity", String.valueOf(1 + random.nextInt(4)))
+                    .append("eventDate", today.plusDays(random.nextInt(365)).format(format))
+                    .append("location", PLACES[random.nextInt(PLACES.length)])
+                    .append("category", "Concert")
+                    .append("price", String.valueOf(20 + random.nextInt(300))));
+        }
+        return documents;
+    }
+}
@@ -0,0 +1,44 @@
+package test;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ListingSearchIndexTest {
+
+    private static final String NEXT_YEAR = LocalDate.now().plusYears(1).format(DateTimeFormatter.ofPattern("dd-MM-yyyy"));
+
+    @Test
+    void skipsListingsWithoutAnEventName() {
+        ListingSearchIndex index = new ListingSearchIndex(0);
+        index.rebuild(Arrays.asList(
+                listing("named", "Coldplay World Tour"),
+                listing("missing", null),
+                listing("blank", "  ")));
+
+        assertEquals(1, index.size());
+        List<String> ids = index.search("", 20).stream()
+                .map(ListingSearchIndex.Listing::getUniqueId)
+                .collect(Collectors.toList());
+        assertEquals(Arrays.asList("named"), ids);
+    }
+
+    private static Document listing(String uniqueId, String eventName) {
+        return new Document("_id", new ObjectId())
+                .append("uniqueId", uniqueId)
+                .append("eventName", eventName)
+                .append("quantity", "2")
+                .append("eventDate", NEXT_YEAR)
+                .append("location", "Berlin")
+                .append("category", "Concert")
+                .append("price", "80");
+    }
+}
@@ -0,0 +1,142 @@
+package test;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.TaggableReadPreference;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// The routing checks need a replica set with at least one secondary, e.g.
+//   MONGO_TEST_REPLICA_SET_URI="mongodb://localhost:27017,localhost:27018,localhost:27019/?replicaSet=rs0" mvn test
+// and are skipped when the variable is not set.
+class MongoRouterTest {
+
+    private static final String REPLICA_SET_URI = System.getenv("MONGO_TEST_REPLICA_SET_URI");
+    private static final String DATABASE_NAME = "gigswap_router_test";
+
+    @Test
+    void clampsBrowseMaxStalenessToServerMinimum() {
+        MongoRouter router = new MongoRouter("mongodb://localhost:27017", "mongodb://localhost:27017", DATABASE_NAME,
+                1, 1, 5, new CommandListener() {
+                });
+
+        ReadPreference readPreference = router.browseCollection("listings").getReadPreference();
+        assertEquals(MongoRouter.MIN_MAX_STALENESS_SECONDS,
+                ((TaggableReadPreference) readPreference).getMaxStaleness(TimeUnit.SECONDS));
+    }
+
+    @Test
+    void forgetsWritesOlderThanTheCausalWindow() throws InterruptedException {
+        List<BsonTimestamp> advanced = new ArrayList<>();
+        MongoClient client = (MongoClient) Proxy.newProxyInstance(MongoClient.class.getClassLoader(),
+                new Class<?>[]{MongoClient.class}, (proxy, method, args) -> session(new BsonTimestamp(7, 1), advanced));
+        MongoRouter router = new MongoRouter(client, client, DATABASE_NAME, 500);
+
+        for (long chatId = 1; chatId <= 100; chatId++) {
+            router.recordWrite(chatId, router.startSession(chatId));
+        }
+        assertEquals(100, router.trackedChats());
+        router.startSession(1);
+        assertEquals(1, advanced.size(), "a recent write is waited for");
+
+        Thread.sleep(600);
+        router.startSession(1);
+        assertEquals(1, advanced.size(), "an expired write is not waited for");
+
+        // The next write sweeps everything past the window
+        router.recordWrite(5000, router.startSession(5000));
+        assertEquals(1, router.trackedChats());
+    }
+
+    @Test
+    void routesBrowseAndOwnReadsToSecondaryAndOwnReadsSeePrecedingWrite() {
+        assumeTrue(REPLICA_SET_URI != null, "MONGO_TEST_REPLICA_SET_URI not set");
+
+        ServerAddress primary;
+        try (MongoClient admin = MongoClients.create(REPLICA_SET_URI)) {
+            Document hello = admin.getDatabase("admin").runCommand(new Document("hello", 1));
+            assumeTrue(hello.getList("hosts", String.class).size() > 1, "replica set has no secondary");
+            primary = new ServerAddress(hello.getString("primary"));
+        }
+
+        // Server each find was sent to; browse finds are the unfiltered ones
+        Queue<ServerAddress> browseTargets = new ConcurrentLinkedQueue<>();
+        Queue<ServerAddress> ownTargets = new ConcurrentLinkedQueue<>();
+        CommandListener listener = new CommandListener() {
+            @Override
+            public void commandStarted(CommandStartedEvent event) {
+                if (event.getCommandName().equals("find")) {
+                    BsonDocument filter = event.getCommand().getDocument("filter", new BsonDocument());
+                    (filter.isEmpty() ? browseTargets : ownTargets).add(event.getConnectionDescription().getServerAddress());
+                }
+            }
+        };
+        MongoRouter router = new MongoRouter(REPLICA_SET_URI, REPLICA_SET_URI, DATABASE_NAME, 5, 5, 90, listener);
+        String collectionName = "listings_" + new ObjectId();
+        MongoCollection<Document> primaryCollection = router.primaryCollection(collectionName);
+        MongoCollection<Document> browseCollection = router.browseCollection(collectionName);
+        MongoCollection<Document> ownReadCollection = router.ownReadCollection(collectionName);
+        try {
+            long chatId = 42;
+            for (int i = 0; i < 20; i++) {
+                ObjectId listingId = new ObjectId();
+                try (ClientSession session = router.startSession(chatId)) {
+                    primaryCollection.insertOne(session, new Document("_id", listingId).append("chatId", chatId));
+                    router.recordWrite(chatId, session);
+                }
+
+                // What /mylistings does: a fresh causal session must see the write made just before
+                try (ClientSession session = router.startSession(chatId)) {
+                    assertNotNull(ownReadCollection.find(session, new Document("_id", listingId)).first(),
+                            "own listing not visible right after the write");
+                }
+
+                browseCollection.find().limit(10).into(new ArrayList<>());
+            }
+
+            assertEquals(20, browseTargets.size());
+            assertTrue(browseTargets.stream().noneMatch(primary::equals), "browse reads sent to the primary: " + browseTargets);
+            assertEquals(20, ownTargets.size());
+            assertTrue(ownTargets.stream().noneMatch(primary::equals), "own reads sent to the primary: " + ownTargets);
+        } finally {
+            primaryCollection.drop();
+        }
+    }
+
+    // A session that reports the given operation time after a write and records what it is advanced to
+    private static ClientSession session(BsonTimestamp operationTime, List<BsonTimestamp> advanced) {
+        return (ClientSession) Proxy.newProxyInstance(ClientSession.class.getClassLoader(),
+                new Class<?>[]{ClientSession.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getOperationTime":
+                            return operationTime;
+                        case "advanceOperationTime":
+                            advanced.add((BsonTimestamp) args[0]);
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
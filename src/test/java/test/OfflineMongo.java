@@ -0,0 +1,46 @@
+package test;
+
+import com.mongodb.client.MongoClient;
+
+import java.lang.reflect.Proxy;
+
+// MongoRouter over clients that never connect: databases and collections can be looked up,
+// but any query or write fails, so a test that touches MongoDB by accident does so loudly.
+final class OfflineMongo {
+
+    private OfflineMongo() {
+    }
+
+    static MongoRouter router() {
+        return new MongoRouter(client(), client(), "offline");
+    }
+
+    static MongoClient client() {
+        return offline(MongoClient.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T offline(Class<T> type) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            String name = method.getName();
+            switch (name) {
+                case "toString":
+                    return "Offline" + type.getSimpleName();
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "close":
+                    return null;
+                default:
+                    break;
+            }
+            // getDatabase, getCollection and with* settings copies just hand out more offline objects
+            if ((name.startsWith("get") || name.startsWith("with")) && method.getReturnType().isInterface()
+                    && method.getReturnType().getName().startsWith("com.mongodb.client.Mongo")) {
+                return offline(method.getReturnType());
+            }
+            throw new UnsupportedOperationException("No MongoDB in this test: " + type.getSimpleName() + "." + name);
+        });
+    }
+}
@@ -0,0 +1,257 @@
+package test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.telegram.telegrambots.bots.DefaultBotOptions;
+import org.telegram.telegrambots.meta.api.objects.Chat;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.PhotoSize;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Drives media relaying through the bot against a stub Bot API server and checks that
+// every item is copied server-side (copyMessage/sendMediaGroup) without downloading files.
+// Also checks that restart notices are sent in the background at a rate Telegram accepts.
+class RelayThroughputTest {
+
+    private static final long SELLER = 1001L;
+    private static final long BUYER = 1002L;
+    private static final int MESSAGES = 2000;
+    // Loose floor so a regression back to download-and-reupload fails, not a benchmark
+    private static final double MIN_MESSAGES_PER_SECOND = 100;
+
+    @TempDir
+    static Path stateDir;
+
+    private static HttpServer server;
+    private static ExecutorService serverExecutor;
+    private static GigSwapBot bot;
+    private static final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private static final Queue<String> copyBodies = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger nextUpdateId = new AtomicInteger();
+    private static final Queue<String> messageBodies = new ConcurrentLinkedQueue<>();
+    private static volatile boolean rejectMediaGroups;
+    private static final AtomicInteger rateLimitedMessages = new AtomicInteger();
+
+    @BeforeAll
+    static void startBot() throws IOException {
+        // Without TCP_NODELAY the stub's split header/body writes hit delayed ACKs (~40 ms per call)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", RelayThroughputTest::handle);
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        // Seed an open chat between seller and buyer, as if it was restored after a restart
+        BotStateStore seed = new BotStateStore(stateDir.toString(), 3600);
+        seed.restore();
+        seed.putChat(SELLER, BUYER);
+        seed.putChat(BUYER, SELLER);
+        seed.close();
+
+        DefaultBotOptions options = new DefaultBotOptions();
+        options.setBaseUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/bot");
+        bot = new GigSwapBot(options, new BotStateStore(stateDir.toString(), 3600), OfflineMongo.router());
+    }
+
+    @AfterAll
+    static void stopServer() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @BeforeEach
+    void resetCalls() {
+        calls.clear();
+        copyBodies.clear();
+        messageBodies.clear();
+        rejectMediaGroups = false;
+        rateLimitedMessages.set(0);
+    }
+
+    @Test
+    void relaysSingleMediaByCopyingServerSide() {
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            bot.onUpdateReceived(photoUpdate(i, null));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double perSecond = MESSAGES / seconds;
+        System.out.printf("Relayed %d media messages in %.2f s (%.0f msg/s)%n", MESSAGES, seconds, perSecond);
+
+        assertEquals(MESSAGES, count("copymessage"));
+        assertEquals(0, count("getfile"));
+        assertEquals(0, count("sendphoto"));
+        for (String body : copyBodies) {
+            assertTrue(body.contains("\"chat_id\":\"" + BUYER + "\""), body);
+            assertTrue(body.contains("\"from_chat_id\":\"" + SELLER + "\""), body);
+        }
+        assertTrue(perSecond >= MIN_MESSAGES_PER_SECOND, "relay throughput " + perSecond + " msg/s");
+    }
+
+    @Test
+    void relaysAlbumsAsOneMediaGroup() throws InterruptedException {
+        int albums = 50;
+        for (int a = 0; a < albums; a++) {
+            for (int i = 0; i < 3; i++) {
+                bot.onUpdateReceived(photoUpdate(a * 3 + i, "album-" + a));
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (count("sendmediagroup") < albums && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(albums, count("sendmediagroup"));
+        assertEquals(0, count("copymessage"));
+        assertEquals(0, count("getfile"));
+    }
+
+    @Test
+    void copiesAlbumItemsOneByOneWhenMediaGroupFails() throws InterruptedException {
+        rejectMediaGroups = true;
+        for (int i = 0; i < 3; i++) {
+            bot.onUpdateReceived(photoUpdate(10_000 + i, "rejected-album"));
+        }
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (count("copymessage") < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, count("sendmediagroup"));
+        assertEquals(3, count("copymessage"));
+    }
+
+    @Test
+    void sendsRestartNoticesInTheBackgroundAndRetriesWhenRateLimited(@TempDir Path otherStateDir) throws InterruptedException {
+        int chats = 50;
+        BotStateStore seed = new BotStateStore(otherStateDir.toString(), 3600);
+        seed.restore();
+        for (long chatId = 1; chatId <= chats; chatId += 2) {
+            seed.putChat(chatId, chatId + 1);
+            seed.putChat(chatId + 1, chatId);
+        }
+        seed.close();
+        // The first notice is answered with 429 and retry_after 1
+        rateLimitedMessages.set(1);
+
+        DefaultBotOptions options = new DefaultBotOptions();
+        options.setBaseUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/bot");
+        long start = System.nanoTime();
+        new GigSwapBot(options, new BotStateStore(otherStateDir.toString(), 3600), OfflineMongo.router());
+        long constructMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(15);
+        while (messageBodies.size() < chats && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Sent %d restart notices in %.2f s (bot built in %d ms)%n", messageBodies.size(), seconds, constructMillis);
+
+        assertTrue(constructMillis < 1000, "startup waited " + constructMillis + " ms for notices");
+        assertEquals(0, rateLimitedMessages.get(), "the rate-limited notice was not sent");
+        for (long chatId = 1; chatId <= chats; chatId++) {
+            String chatField = "\"chat_id\":\"" + chatId + "\"";
+            assertEquals(1, messageBodies.stream().filter(body -> body.contains(chatField)).count(), "notices to chat " + chatId);
+        }
+        // 1 s of retry_after plus the pacing of the rest
+        assertTrue(seconds >= 1 + (chats - 1) / (double) RestartNotifier.MESSAGES_PER_SECOND * 0.9, "notices sent in " + seconds + " s");
+    }
+
+    private static int count(String method) {
+        AtomicInteger counter = calls.get(method);
+        return counter == null ? 0 : counter.get();
+    }
+
+    private static Update photoUpdate(int messageId, String mediaGroupId) {
+        PhotoSize photo = new PhotoSize();
+        photo.setFileId("file-" + messageId);
+        photo.setFileUniqueId("unique-" + messageId);
+        photo.setWidth(1280);
+        photo.setHeight(720);
+
+        Message message = new Message();
+        message.setMessageId(messageId);
+        message.setChat(new Chat(SELLER, "private"));
+        message.setPhoto(Collections.singletonList(photo));
+        message.setMediaGroupId(mediaGroupId);
+
+        Update update = new Update();
+        update.setUpdateId(nextUpdateId.incrementAndGet());
+        update.setMessage(message);
+        return update;
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        // Method paths are not consistently cased (e.g. "sendmessage" vs "copymessage")
+        String method = path.substring(path.lastIndexOf('/') + 1).toLowerCase();
+        String body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        calls.computeIfAbsent(method, k -> new AtomicInteger()).incrementAndGet();
+
+        if (method.equals("sendmediagroup") && rejectMediaGroups) {
+            respond(exchange, 400, "{\"ok\":false,\"error_code\":400,\"description\":\"Bad Request: WEBPAGE_CURL_FAILED\"}");
+            return;
+        }
+
+        if (method.equals("sendmessage") && rateLimitedMessages.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            respond(exchange, 429, "{\"ok\":false,\"error_code\":429,\"description\":\"Too Many Requests: retry after 1\",\"parameters\":{\"retry_after\":1}}");
+            return;
+        }
+
+        String result;
+        switch (method) {
+            case "copymessage":
+                copyBodies.add(body);
+                result = "{\"message_id\":1}";
+                break;
+            case "sendmessage":
+                messageBodies.add(body);
+                result = "{\"message_id\":1,\"date\":0,\"chat\":{\"id\":1,\"type\":\"private\"}}";
+                break;
+            case "sendmediagroup":
+                result = "[]";
+                break;
+            default:
+                result = "true";
+                break;
+        }
+        respond(exchange, 200, "{\"ok\":true,\"result\":" + result + "}");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] response = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+}